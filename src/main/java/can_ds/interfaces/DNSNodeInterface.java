@@ -6,6 +6,7 @@ import java.util.List;
 
 public interface DNSNodeInterface extends Remote {
     int register(NodeInterface nodeStub) throws RemoteException;
+    void reregister(int id, NodeInterface nodeStub) throws RemoteException;
     void deregister(int id) throws RemoteException;
     String dispNodeInfo() throws RemoteException;
     List<NodeInterface> getBSNodes() throws RemoteException;
@@ -1,22 +1,44 @@
 package can_ds.interfaces;
 
 import can_ds.nodes.ZoneData;
+import can_ds.utils.LoadInfo;
 import can_ds.utils.RoutingData;
+import can_ds.utils.SpatialIndex;
+import can_ds.utils.SplitData;
+import can_ds.utils.TransferHandle;
 import can_ds.utils.UpdateData;
 import can_ds.utils.Zone;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Set;
 
 public interface NodeInterface extends Remote {
     int getID() throws RemoteException;
     String getInfo() throws RemoteException;
-    void assignZone(ZoneData z) throws RemoteException;
+    boolean ping() throws RemoteException;
+    Set<String> assignZone(ZoneData z) throws RemoteException;
+    void confirmItems(int reality, SpatialIndex items) throws RemoteException;
     int sendMessage(RoutingData r) throws RemoteException;
+    int sendBatch(List<RoutingData> batch) throws RemoteException;
     int sendUpdate(UpdateData updateInfo) throws RemoteException;
-    double distToPoint(double px, double py) throws RemoteException;
-    boolean isNeighbor(Zone zone, String position) throws RemoteException;
-    byte[] downloadFile(String fileName) throws RemoteException;
+    Zone sendSplit(SplitData split) throws RemoteException;
+    int takeoverZone(ZoneData zone) throws RemoteException;
+    NodeInterface vacateZone(int reality) throws RemoteException;
+    Zone getZone(int reality) throws RemoteException;
+    double distToPoint(int reality, double[] p) throws RemoteException;
+    LoadInfo getLoad(int reality) throws RemoteException;
+    List<LoadInfo> sampleLoad(int reality) throws RemoteException;
+    void cacheOwner(double[] p, UpdateData owner) throws RemoteException;
+    int storeReplicas(int reality, SpatialIndex items, NodeInterface owner) throws RemoteException;
+    void dropReplicas(int reality, SpatialIndex items) throws RemoteException;
+    boolean isNeighbor(int reality, Zone zone, String position) throws RemoteException;
+    long getFileSize(String fileName) throws RemoteException;
+    byte[] downloadFileChunk(String fileName, long offset, int length, int codec) throws RemoteException;
+    TransferHandle openTransfer(String fileName, int codec) throws RemoteException;
     void dispPath(String path) throws RemoteException;
     void dispError(String msg) throws RemoteException;
+    void completeRequest(long requestID, int status, String msg) throws RemoteException;
+    void receiveRange(long requestID, int peerID, SpatialIndex items) throws RemoteException;
 }
@@ -6,6 +6,9 @@ import can_ds.interfaces.NodeInterface;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DNSNode implements DNSNodeInterface {
     /**
@@ -21,17 +24,24 @@ public class DNSNode implements DNSNodeInterface {
     /**
      * Counter for node id's.
      */
-    private int nextNodeId;
+    private AtomicInteger nextNodeId;
 
     /**
-     * Count of nodes in network.
+     * Map of nodes in network. Written under the lock of nodeIds, so a
+     * sampled ID always has an entry.
      */
-    private int nodeCount;
+    private Map<Integer, NodeInterface> nodeMap;
 
     /**
-     * Map of nodes in network.
+     * IDs of nodes in network packed in a list for sampling bootstrap
+     * nodes. Guarded by itself together with nodeIndex.
      */
-    private Map<Integer, NodeInterface> nodeMap;
+    private List<Integer> nodeIds;
+
+    /**
+     * Position of each node ID in nodeIds.
+     */
+    private Map<Integer, Integer> nodeIndex;
 
     /**
      * Java RMI registry.
@@ -42,9 +52,10 @@ public class DNSNode implements DNSNodeInterface {
      * Bootstraps the DNS node.
      */
     public DNSNode() {
-        this.nextNodeId = 0;
-        this.nodeCount  = 0;
-        this.nodeMap    = new HashMap<>();
+        this.nextNodeId = new AtomicInteger();
+        this.nodeMap    = new ConcurrentHashMap<>();
+        this.nodeIds    = new ArrayList<>();
+        this.nodeIndex  = new HashMap<>();
         try {
             this.registry = LocateRegistry.getRegistry();
         }
@@ -55,27 +66,36 @@ public class DNSNode implements DNSNodeInterface {
     }
 
     /**
-     * Returns a list of bootstrap nodes.
+     * Returns a list of bootstrap nodes, sampled at random without
+     * copying the node list.
      *
      * @return List<NodeInterface> - Bootstrap nodes list
      */
     public List<NodeInterface> getBSNodes() {
-        List<NodeInterface> nodeStubs = new ArrayList<>();
+        List<NodeInterface> retNodes = new ArrayList<>();
 
-        nodeStubs.addAll(this.nodeMap.values());
-        Collections.shuffle(nodeStubs);
+        synchronized (this.nodeIds) {
+            int count = this.nodeIds.size();
 
-        if (this.nodeCount > 3) {
-            List<NodeInterface> retNodes = new ArrayList<>();
-            for (int i = 0; i < MAX_BS_NODES; i++) {
-                retNodes.add(nodeStubs.get(i));
+            if (count > MAX_BS_NODES) {
+                // Pick distinct random positions
+                Set<Integer> picked = new HashSet<>();
+                while (picked.size() < MAX_BS_NODES) {
+                    picked.add(ThreadLocalRandom.current().nextInt(count));
+                }
+                for (int i : picked) {
+                    retNodes.add(this.nodeMap.get(this.nodeIds.get(i)));
+                }
+            }
+            else {
+                for (int id : this.nodeIds) {
+                    retNodes.add(this.nodeMap.get(id));
+                }
+                Collections.shuffle(retNodes);
             }
-            return retNodes;
-        }
-        else {
-            return nodeStubs;
         }
 
+        return retNodes;
     }
 
     /**
@@ -96,23 +116,57 @@ public class DNSNode implements DNSNodeInterface {
      * @return int - Unique ID for node
      */
     public int register(NodeInterface nodeStub) {
-        int curNodeID = this.nextNodeId++;
-
-        this.nodeCount++;
+        int curNodeID = this.nextNodeId.getAndIncrement();
 
-        this.nodeMap.put(curNodeID, nodeStub);
+        synchronized (this.nodeIds) {
+            this.nodeMap.put(curNodeID, nodeStub);
+            this.nodeIndex.put(curNodeID, this.nodeIds.size());
+            this.nodeIds.add(curNodeID);
+        }
 
         return curNodeID;
     }
 
+    /**
+     * Registers a restarted node under the ID it had before.
+     *
+     * @param id - Previous ID of node
+     * @param nodeStub - Remote interface of restarted node
+     */
+    public void reregister(int id, NodeInterface nodeStub) {
+        // IDs are never handed out twice
+        this.nextNodeId.accumulateAndGet(id + 1, Math::max);
+
+        synchronized (this.nodeIds) {
+            this.nodeMap.put(id, nodeStub);
+            if (!this.nodeIndex.containsKey(id)) {
+                this.nodeIndex.put(id, this.nodeIds.size());
+                this.nodeIds.add(id);
+            }
+        }
+    }
+
     /**
      * De-registers a node with id.
      *
      * @param id - ID of a node
      */
     public void deregister(int id) {
-        this.nodeMap.remove(id);
-        this.nodeCount--;
+        synchronized (this.nodeIds) {
+            Integer index = this.nodeIndex.remove(id);
+            if (index == null) {
+                return;
+            }
+
+            // Move last ID into freed position
+            int lastID = this.nodeIds.remove(this.nodeIds.size() - 1);
+            if (lastID != id) {
+                this.nodeIds.set(index, lastID);
+                this.nodeIndex.put(lastID, index);
+            }
+
+            this.nodeMap.remove(id);
+        }
     }
 
     /**
@@ -123,11 +177,11 @@ public class DNSNode implements DNSNodeInterface {
      * @return String - Information string of all nodes in network.
      */
     public String dispNodeInfo() {
-        if (this.nodeCount == 0) {
+        if (this.nodeMap.isEmpty()) {
             return "No nodes in overlay n/w.";
         }
         else {
-            String info = "Nodes: " + this.nodeCount + "\n";
+            String info = "Nodes: " + this.nodeMap.size() + "\n";
 
             for (NodeInterface node : this.nodeMap.values()) {
                 try {
@@ -154,8 +208,8 @@ public class DNSNode implements DNSNodeInterface {
      */
     public String dispNodeInfo(int id) {
         String str = "No such peer exists!";
-        if (this.nodeMap.containsKey(id)) {
-            NodeInterface node = this.nodeMap.get(id);
+        NodeInterface node = this.nodeMap.get(id);
+        if (node != null) {
             try {
                 str = node.getInfo();
             }
@@ -1,17 +1,55 @@
 package can_ds.nodes;
 
 import can_ds.interfaces.NodeInterface;
+import can_ds.servers.DataServer;
+import can_ds.utils.Compression;
+import can_ds.utils.ContentStore;
+import can_ds.utils.FileTransfer;
+import can_ds.utils.IndexLog;
+import can_ds.utils.LoadInfo;
+import can_ds.utils.OwnerCache;
+import can_ds.utils.Point;
 import can_ds.utils.RoutingData;
+import can_ds.utils.ShortcutTable;
+import can_ds.utils.SpatialIndex;
+import can_ds.utils.SplitData;
+import can_ds.utils.TransferHandle;
 import can_ds.utils.UpdateData;
 import can_ds.utils.Utils;
 import can_ds.utils.Zone;
 
 import java.io.*;
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Node implements NodeInterface {
     /**
@@ -19,6 +57,99 @@ public class Node implements NodeInterface {
      */
     public static final String DATA_ITEMS_ROOT = "data";
 
+    /**
+     * Number of threads forwarding asynchronous requests.
+     */
+    public static final int ROUTING_THREADS = 4;
+
+    /**
+     * Max asynchronous requests queued at a node.
+     */
+    public static final int ROUTING_QUEUE_SIZE = 1024;
+
+    /**
+     * Time after which an asynchronous request with no reply is dropped.
+     */
+    public static final long REQUEST_TIMEOUT_MS = 60000;
+
+    /**
+     * Threads notifying neighbors of zone changes in parallel.
+     */
+    public static final int UPDATE_THREADS = 8;
+
+    /**
+     * Contents downloaded in parallel when taking over data items.
+     */
+    public static final int TRANSFER_THREADS = 4;
+
+    /**
+     * Threads pushing and copying replicas in the background.
+     */
+    public static final int REPLICA_THREADS = 2;
+
+    /**
+     * Max replication tasks queued at a node.
+     */
+    public static final int REPLICA_QUEUE_SIZE = 256;
+
+    /**
+     * Threads pinging neighbors in parallel.
+     */
+    public static final int HEARTBEAT_THREADS = 8;
+
+    /**
+     * Interval between heartbeats sent to neighbors.
+     */
+    public static final long HEARTBEAT_INTERVAL_MS = 1000;
+
+    /**
+     * Missed heartbeats after which a neighbor is suspected dead.
+     */
+    public static final int MAX_MISSED_HEARTBEATS = 2;
+
+    /**
+     * Max neighbors tried when forwarding a message.
+     */
+    public static final int MAX_FORWARD_ATTEMPTS = 3;
+
+    /**
+     * Attempts to hand off a zone before leaving, retried after a random
+     * delay as the target may be handing off its own zone at the same time.
+     */
+    public static final int LEAVE_ATTEMPTS = 3;
+
+    /**
+     * Heartbeat rounds between refreshes of shortcuts.
+     */
+    public static final int SHORTCUT_REFRESH_ROUNDS = 10;
+
+    /**
+     * Number of recent range requests remembered to drop copies.
+     */
+    public static final int SEEN_RANGES = 1024;
+
+    /**
+     * Number of realities, i.e. independent partitionings of the coordinate
+     * space in each of which a node owns one zone. All nodes of an overlay
+     * must use the same value, set with -Dcan.realities (default 1).
+     */
+    public static final int REALITIES = Math.max(1, Integer.getInteger("can.realities", 1));
+
+    /**
+     * Number of neighbors holding a replica of each data item, set with
+     * -Dcan.replicas.
+     */
+    public static final int REPLICAS = Math.max(0, Integer.getInteger("can.replicas", 0));
+
+    /**
+     * Serve chunks of stored contents from memory mappings instead of
+     * reading them on every chunk. Only chunked RMI downloads use them,
+     * the data server streams files with transferTo. Disabled with
+     * -Dcan.mmap=false.
+     */
+    public static final boolean MAPPED_SERVING =
+            Boolean.parseBoolean(System.getProperty("can.mmap", "true"));
+
     /**
      * Name.
      */
@@ -40,32 +171,152 @@ public class Node implements NodeInterface {
     private NodeInterface selfStub;
 
     /**
-     * List of neighbors.
+     * Zone, neighbors and data items of each reality.
+     */
+    private List<Reality> realities;
+
+    /**
+     * Bounded executor forwarding asynchronous routing requests.
+     */
+    private ThreadPoolExecutor routingExecutor;
+
+    /**
+     * Executor sending zone change notifications to neighbors in parallel.
+     */
+    private ExecutorService updateExecutor;
+
+    /**
+     * Executor downloading contents of inherited or replicated data items.
+     */
+    private ExecutorService transferExecutor;
+
+    /**
+     * Bounded executor pushing replicas to neighbors and copying replicas
+     * pushed to us, apart from zone updates and takeovers.
+     */
+    private ThreadPoolExecutor replicaExecutor;
+
+    /**
+     * Scheduler of heartbeats to neighbors, null until started.
+     */
+    private ScheduledExecutorService heartbeatExecutor;
+
+    /**
+     * Executor pinging neighbors, kept apart from the update executor so
+     * long zone changes and replication cannot delay heartbeats. Null
+     * until heartbeats are started.
+     */
+    private ExecutorService pingExecutor;
+
+    /**
+     * Consecutive heartbeats missed by each neighbor.
+     */
+    private Map<NodeInterface, Integer> missedHeartbeats;
+
+    /**
+     * Neighbors suspected dead, skipped while routing.
+     */
+    private Set<NodeInterface> suspectedNeighbors;
+
+    /**
+     * Heartbeat rounds sent so far.
+     */
+    private int heartbeatRounds;
+
+    /**
+     * Owners of points resolved by searches that passed through this node.
+     */
+    private OwnerCache ownerCache;
+
+    /**
+     * ID's of neighbors and shortcuts, looked up once per stub to match
+     * them against the nodes a request visited.
+     */
+    private Map<NodeInterface, Integer> peerIDs;
+
+    /**
+     * Recent range requests scanned here, keyed by origin and request ID.
+     */
+    private Set<List<Object>> seenRanges;
+
+    /**
+     * Whether requests originated at this node are routed asynchronously.
+     */
+    private boolean asyncRouting;
+
+    /**
+     * Counter for request ID's of requests originated at this node.
+     */
+    private AtomicLong nextRequestID;
+
+    /**
+     * Pending asynchronous requests originated at this node.
      */
-    private Map<String, List<NodeInterface>> neighbors;
+    private Map<Long, PendingRequest> pendingRequests;
 
     /**
-     *  Map of data times.
+     * Socket server streaming stored files, null if not started.
      */
-    private Map<String, List<String>> dataItems;
+    private DataServer dataServer;
 
     /**
-     * Associated zone.
+     * Files stored by this node, one per content. Null until ID is set.
      */
-    private Zone z;
+    private ContentStore contentStore;
+
+    /**
+     * Log of zone and data index changes for restarts. Null until ID is set.
+     */
+    private IndexLog indexLog;
 
     /**
      * Default constructor.
      */
     public Node() {
-        this.neighbors = new HashMap<>();
-        this.neighbors.put("left", new ArrayList<>());
-        this.neighbors.put("bottom", new ArrayList<>());
-        this.neighbors.put("right", new ArrayList<>());
-        this.neighbors.put("top", new ArrayList<>());
-        this.dataItems = new HashMap<>();
-        this.z = null;
-
+        this.realities = new ArrayList<>();
+        for (int i = 0; i < REALITIES; i++) {
+            this.realities.add(new Reality(i));
+        }
+        this.routingExecutor = new ThreadPoolExecutor(
+                ROUTING_THREADS, ROUTING_THREADS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(ROUTING_QUEUE_SIZE),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "routing");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.updateExecutor = Executors.newFixedThreadPool(UPDATE_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "update");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.transferExecutor = Executors.newFixedThreadPool(TRANSFER_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "transfer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.replicaExecutor = new ThreadPoolExecutor(
+                REPLICA_THREADS, REPLICA_THREADS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(REPLICA_QUEUE_SIZE),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "replica");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.missedHeartbeats = new ConcurrentHashMap<>();
+        this.peerIDs = new ConcurrentHashMap<>();
+        this.suspectedNeighbors = ConcurrentHashMap.newKeySet();
+        this.ownerCache = new OwnerCache();
+        this.seenRanges = Collections.synchronizedSet(Collections.newSetFromMap(
+                new LinkedHashMap<List<Object>, Boolean>() {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<List<Object>, Boolean> eldest) {
+                        return size() > SEEN_RANGES;
+                    }
+                }));
+        this.asyncRouting = false;
+        this.nextRequestID = new AtomicLong(0);
+        this.pendingRequests = new ConcurrentHashMap<>();
     }
 
     /**
@@ -78,12 +329,22 @@ public class Node implements NodeInterface {
     }
 
     /**
-     * Returns zone of current node.
+     * Returns zone of current node in first reality.
      *
      * @return Zone - Zone details
      */
     public Zone getZone() {
-        return z;
+        return this.getZone(0);
+    }
+
+    /**
+     * Returns zone of current node in given reality.
+     *
+     * @param reality - Index of reality
+     * @return Zone - Zone details
+     */
+    public Zone getZone(int reality) {
+        return this.realities.get(reality).getZone();
     }
 
     /**
@@ -105,12 +366,15 @@ public class Node implements NodeInterface {
     }
 
     /**
-     * Sets unique ID of node.
+     * Sets unique ID of node and opens its content store and index log,
+     * which live in a directory named after the ID.
      *
      * @param id - Node id to be set
      */
     public void setID(int id) {
         this.nodeID = id;
+        this.contentStore = new ContentStore(new File(DATA_ITEMS_ROOT + "-" + id));
+        this.indexLog = new IndexLog(new File(DATA_ITEMS_ROOT + "-" + id));
     }
 
     /**
@@ -123,18 +387,13 @@ public class Node implements NodeInterface {
     }
 
     /**
-     * Returns all neighbors of a node as a list.
+     * Returns all neighbors of a node in given reality as a list.
      *
+     * @param reality - Index of reality
      * @return List<NodeInterface>
      */
-    public List<NodeInterface> getAllNeighborsList() {
-        List<NodeInterface> allNeighbors = new ArrayList<>();
-
-        for(List<NodeInterface> nodeList : this.neighbors.values()) {
-            allNeighbors.addAll(nodeList);
-        }
-
-        return allNeighbors;
+    public List<NodeInterface> getAllNeighborsList(int reality) {
+        return this.realities.get(reality).getAllNeighborsList();
     }
 
     /**
@@ -147,39 +406,33 @@ public class Node implements NodeInterface {
     }
 
     /**
-     * Sets the zone managed by node.
-     *
-     * @param x - Starting x coordinate
-     * @param y - Starting y coordinate
-     * @param width - Width along x axis
-     * @param height - Height along y axis
-     */
-    public void setZone(double x, double y, double width, double height) {
-        this.z = new Zone(x, y, width, height);
-    }
-
-    /**
-     * Sets zone managed by node.
+     * Sets zone managed by node in given reality.
      *
+     * @param reality - Index of reality
      * @param zone - Zone object
      */
-    public void setZone(Zone zone) {
-        this.z = zone;
+    public void setZone(int reality, Zone zone) {
+        this.realities.get(reality).setZone(zone);
+        this.snapshotState();
     }
 
     /**
      * Returns the distance of current node zones from given point.
      *
-     * @param x - x coordinate of destination
-     * @param y - y coordinate of destination
+     * @param reality - Index of reality
+     * @param p - Coordinates of destination
      * @return double - distance to given point
      */
-    public double distToPoint(double x, double y) {
-        return this.z.zoneDistance(x, y);
+    public double distToPoint(int reality, double[] p) {
+        Zone zone = this.getZone(reality);
+
+        return (zone == null) ? Double.MAX_VALUE : zone.zoneDistance(p);
     }
 
     /**
      * Forwards a message to a node nearest to given coordinates.
+     * Asynchronous requests are queued on the routing executor and this
+     * call returns as soon as the request has been queued.
      *
      * @param r - All information required to route a request.
      *            Destination coordinates, operation, originating node stub.
@@ -187,6 +440,144 @@ public class Node implements NodeInterface {
      *         1 - Failure
      */
     public int sendMessage(RoutingData r) {
+        if (r.isAsync()) {
+            try {
+                this.routingExecutor.execute(() -> this.routeMessage(r));
+                return 0;
+            }
+            catch (RejectedExecutionException e) {
+                System.out.println("ERROR: Routing queue full, rejected request " + r.getRequestID());
+                return 1;
+            }
+        }
+
+        return this.routeMessage(r);
+    }
+
+    /**
+     * Routes a batch of insert and search requests. Requests for points in
+     * our zones are processed here, the others are grouped by next hop and
+     * each group is passed on in a single call. (Remote interface)
+     *
+     * @param batch - Routing data of requests
+     * @return 0 - Success
+     *         1 - Failure of at least one request
+     */
+    public int sendBatch(List<RoutingData> batch) {
+        if (!batch.isEmpty() && batch.get(0).isAsync()) {
+            try {
+                this.routingExecutor.execute(() -> this.routeBatch(batch));
+                return 0;
+            }
+            catch (RejectedExecutionException e) {
+                System.out.println("ERROR: Routing queue full, rejected batch of " + batch.size());
+                return 1;
+            }
+        }
+
+        return this.routeBatch(batch);
+    }
+
+    /**
+     * Handles a batch of requests at this node.
+     *
+     * @param batch - Routing data of requests
+     * @return 0 - Success
+     *         1 - Failure of at least one request
+     */
+    private int routeBatch(List<RoutingData> batch) {
+        int retval = 0;
+
+        // Group requests passed on by next hop
+        Map<NodeInterface, List<RoutingData>> groups = new HashMap<>();
+        for (RoutingData r : batch) {
+            NodeInterface nextHop = this.getBatchHop(r);
+            if (nextHop == null) {
+                retval |= this.routeMessage(r);
+                continue;
+            }
+
+            r.setPath(r.getPath() + "peer-" + this.getID() + " ");
+            r.addVisited(this.getID());
+            groups.computeIfAbsent(nextHop, k -> new ArrayList<>()).add(r);
+        }
+
+        for (Map.Entry<NodeInterface, List<RoutingData>> group : groups.entrySet()) {
+            NodeInterface nextHop = group.getKey();
+            try {
+                int status = nextHop.sendBatch(group.getValue());
+
+                // An asynchronous next hop only fails here if its queue is full
+                if (status != 0 && group.getValue().get(0).isAsync()) {
+                    for (RoutingData r : group.getValue()) {
+                        this.notifyResult(r, 1, "Failed to forward message: next hop is busy");
+                    }
+                }
+                retval |= status;
+            }
+            catch (ConnectException | ConnectIOException | NoSuchObjectException e) {
+                // Batch never reached neighbor, pass requests on one by one
+                this.suspectNeighbor(nextHop);
+                for (RoutingData r : group.getValue()) {
+                    retval |= this.forwardMessage(r, r.getPoint());
+                }
+            }
+            catch (RemoteException e) {
+                // Neighbor may just be slow, heartbeats decide if it is dead
+                for (RoutingData r : group.getValue()) {
+                    this.notifyResult(r, 1, "Failed to forward message: " + e.getMessage());
+                }
+                retval = 1;
+            }
+        }
+
+        return retval;
+    }
+
+    /**
+     * Returns node a request of a batch is passed to, null if it is
+     * processed here. Only insert and search requests for points outside
+     * our zones are passed on in batches.
+     *
+     * @param r - Routing data
+     * @return NodeInterface
+     */
+    private NodeInterface getBatchHop(RoutingData r) {
+        double[] p = r.getPoint();
+        int reality = r.getReality();
+        boolean isSearch = r.getOp().equals("search");
+
+        if (!(isSearch || r.getOp().equals("insert")) || p.length != Zone.DIMENSIONS)
+            return null;
+        if (reality != RoutingData.ANY_REALITY &&
+                (reality < 0 || reality >= REALITIES || this.getZone(reality) == null))
+            return null;
+        if (this.findOwningReality(reality, p) != null)
+            return null;
+
+        if (isSearch) {
+            if (this.findReplicaReality(reality, p, r.getFileName()) != null)
+                return null;
+
+            NodeInterface owner = this.ownerCache.get(p, reality);
+            if (owner != null && !owner.equals(this.selfStub) &&
+                    !this.suspectedNeighbors.contains(owner) && !this.isVisited(r, owner)) {
+                return owner;
+            }
+        }
+
+        return this.getUnvisitedHop(r, p, new HashSet<>());
+    }
+
+    /**
+     * Handles a routing request at this node: either processes it if the
+     * destination point lies in our zone or forwards it to the nearest neighbor.
+     *
+     * @param r - Routing data
+     * @return 0 - Success
+     *         1 - Failure
+     */
+    private int routeMessage(RoutingData r) {
         int retval = 1;
         String path = "";
 
@@ -194,65 +585,99 @@ public class Node implements NodeInterface {
         String op = r.getOp();
 
         // Get points from routing data
-        double px = r.getX();
-        double py = r.getY();
+        double[] p = r.getPoint();
+        if (p.length != Zone.DIMENSIONS) {
+            this.notifyResult(r, 1, "ERROR: Point has " + p.length +
+                    " dimensions, overlay uses " + Zone.DIMENSIONS);
+            return retval;
+        }
+
+        // Check requested reality has been joined
+        int realityIndex = r.getReality();
+        if (realityIndex != RoutingData.ANY_REALITY &&
+                (realityIndex < 0 || realityIndex >= REALITIES || this.getZone(realityIndex) == null)) {
+            this.notifyResult(r, 1, "ERROR: peer-" + this.getID() +
+                    " has no zone in reality " + realityIndex);
+            return retval;
+        }
 
         // Get caller node
         NodeInterface origNode = r.getOrigNode();
-        boolean isPointInZone = this.z.isPointInZone(px, py);
+        Reality reality = this.findOwningReality(realityIndex, p);
+        boolean isPointInZone = (reality != null);
 
         switch(op) {
             case "join":
 
                 // Check if point is in our zone
-                if (isPointInZone) {
-                    ZoneData newZone = new ZoneData();
-
-                    // Split zone coordinate space
-                    int splitType = this.z.splitZone(newZone);
-
-                    // Split zone neighbors
-                    this.splitZoneNeighbors(newZone, r.getOrigNode(), splitType);
-
-                    // Split zone dataitems
-                    List<String> filesToRemove = this.splitZoneDataItems(newZone);
-
-                    // Set dest zone for file transfers
-                    newZone.setDestStub(this.selfStub);
+                ZoneData newZone = isPointInZone ? this.splitForJoin(reality, p, origNode) : null;
+                if (newZone != null) {
+                    // Items of new zone stay reachable through us until the new node
+                    // confirms their contents
+                    this.holdHandoff(reality, newZone.getDataItems());
 
+                    Set<String> stored;
                     try {
-                        r.getOrigNode().assignZone(newZone);
+                        stored = origNode.assignZone(newZone);
+                    }
+                    catch (ConnectException | ConnectIOException | NoSuchObjectException e) {
+                        // Zone never reached new node
+                        this.undoSplit(reality, newZone, origNode);
+                        this.notifyResult(r, 1, "Failed to assign new zone");
+                        break;
                     }
                     catch (RemoteException e) {
-                        try { origNode.dispError("Failed to assign new zone"); }
-                        catch (RemoteException e1) {
-                            System.out.println("ERROR: " + e.getMessage());
+                        // Call may have run, zone is only taken back if new node does not own it
+                        if (!this.mayOwnZone(origNode, newZone)) {
+                            this.undoSplit(reality, newZone, origNode);
+                            this.notifyResult(r, 1, "Failed to assign new zone");
+                            break;
                         }
-                        break;
+                        stored = Collections.emptySet();
                     }
 
-                    // Delete files passed to new zone.
-                    for (String fileName : filesToRemove) {
-                        File file = new File(DATA_ITEMS_ROOT + fileName);
-                        if (file.exists())
-                            file.delete();
+                    // Contents new node stored already are confirmed now, the others
+                    // one by one as it downloads them
+                    this.confirmItems(reality.getIndex(), newZone.getDataItems().withContents(stored));
+
+                    // Only asynchronous joins wait for a completion callback
+                    if (r.isAsync()) {
+                        this.notifyResult(r, 0, "Zone assigned by peer-" + this.getID());
                     }
+                    retval = 0;
                 }
                 // Forward routing data to neighbor nearest to dest point
                 else {
-                    NodeInterface nearestNeighbor =
-                            Utils.getNearestNeighbor(px, py, this.getAllNeighborsList());
+                    retval = this.forwardMessage(r, p);
+                }
+                break;
 
+            case "probe":
+                // Tell origin node about owner of sampled point
+                if (isPointInZone) {
                     try {
-                        nearestNeighbor.sendMessage(r);
+                        origNode.cacheOwner(p, new UpdateData(reality.getIndex(), reality.getZone(), this.selfStub));
+                        retval = 0;
                     }
                     catch (RemoteException e) {
-                        try { origNode.dispError("Failed to forward message"); }
-                        catch (RemoteException e1) {
-                            System.out.println("ERROR: " + e1.getMessage());
-                        }
+                        System.out.println("ERROR: " + e.getMessage());
                     }
                 }
+                else {
+                    retval = this.forwardMessage(r, p);
+                }
+                break;
+
+            case "range":
+                // Scan once the region overlaps one of our zones
+                Reality overlapping = this.findOverlappingReality(realityIndex, r.getRegion());
+                if (overlapping != null) {
+                    retval = this.scanRange(r, overlapping);
+                }
+                // Forward routing data towards center of region
+                else {
+                    retval = this.forwardMessage(r, p);
+                }
                 break;
 
             case "insert":
@@ -263,77 +688,42 @@ public class Node implements NodeInterface {
 
                 // Check if point is in our zone
                 if (isPointInZone) {
+                    reality.getRequestRate().record();
+
                     // Add filename to this nodes data items
                     String fileName = r.getFileName();
                     File tmpFile = new File(fileName);
                     String onlyFileName = tmpFile.getName();
-                    String point = px + "," + py;
-                    List<String> tmpValue = this.dataItems.getOrDefault(point, (new ArrayList<>()));
-                    tmpValue.add(onlyFileName);
+                    String hash = r.getContentHash();
 
-                    byte[] fileData = null;
-                    try {
-                        fileData = origNode.downloadFile(fileName);
+                    if (hash == null) {
+                        this.notifyResult(r, 1, "ERROR: No content hash given for " + fileName);
+                        break;
                     }
-                    catch (RemoteException e) {
-                        try { origNode.dispError("ERROR: " + e.getMessage()); }
-                        catch (RemoteException e1) {
-                            System.out.println("ERROR: " + e1.getMessage());
-                        }
+                    if (reality.isLeaving()) {
+                        this.notifyResult(r, 1, "ERROR: peer-" + this.getID() +
+                                " is handing off its zone, try again");
                         break;
                     }
 
-                    if (fileData != null) {
-                        File file = new File(DATA_ITEMS_ROOT + "-" +
-                                this.getID() + "/" + onlyFileName);
+                    // Downloads of asynchronous inserts run on transfer threads
+                    // so routing threads keep forwarding other requests
+                    if (r.isAsync()) {
                         try {
-                            BufferedOutputStream out =
-                                    new BufferedOutputStream(
-                                            new FileOutputStream(file));
-                            out.write(fileData, 0, fileData.length);
-                            out.flush();
-                            out.close();
-                        } catch (Exception e) {
-                            try { origNode.dispError("ERROR: " + e.getMessage()); }
-                            catch (RemoteException e1) {
-                                System.out.println("ERROR: " + e1.getMessage());
-                            }
-                            break;
+                            this.transferExecutor.execute(() -> this.storeInsert(r, reality, p, onlyFileName));
+                            retval = 0;
                         }
-
-                        // Store filename in hash map
-                        this.dataItems.put(point, tmpValue);
-
-                        // Return path to be displayed at origNode
-                        try {
-                            origNode.dispPath(path);
-                        } catch (RemoteException e) {
-                            try { origNode.dispError("ERROR: " + e.getMessage()); }
-                            catch (RemoteException e1) {
-                                System.out.println("ERROR: " + e1.getMessage());
-                            }
-                            break;
+                        catch (RejectedExecutionException e) {
+                            this.notifyResult(r, 1, "ERROR: peer-" + this.getID() + " is shutting down");
                         }
                     }
                     else {
-                        System.out.println("Failed to download file");
+                        retval = this.storeInsert(r, reality, p, onlyFileName);
                     }
                 }
                 // Forward routing data to neighbor nearest to dest point
                 else {
-                    NodeInterface nearestNeighbor =
-                            Utils.getNearestNeighbor(px, py, this.getAllNeighborsList());
-
-                    try {
-                        nearestNeighbor.sendMessage(r);
-                    }
-                    catch(Exception e) {
-                        try { origNode.dispError("ERROR: " + e.getMessage()); }
-                        catch (RemoteException e1) {
-                            System.out.println("ERROR: " + e1.getMessage());
-                        }
-                        break;
-                    }
+                    retval = this.forwardMessage(r, p);
                 }
                 break;
 
@@ -345,48 +735,34 @@ public class Node implements NodeInterface {
 
                 // Check if point is in our zone
                 if (isPointInZone) {
-                    // Check if file is part of data items
-                    String point = px + "," + py;
-                    List<String> tmpValue = this.dataItems.getOrDefault(point, (new ArrayList<>()));
+                    reality.getRequestRate().record();
 
+                    // Check if file is part of data items
                     String searchValue = r.getFileName();
 
-                    if (tmpValue.contains(searchValue)) {
-                        try {
-                            origNode.dispPath(path);
-                        }
-                        catch (RemoteException e) {
-                            try { origNode.dispError("ERROR: " + e.getMessage()); }
-                            catch (RemoteException e1) {
-                                System.out.println("ERROR: " + e1.getMessage());
-                            }
-                            break;
-                        }
+                    if (reality.getDataItems().contains(p, searchValue)) {
+                        this.notifyResult(r, 0, path);
+                        retval = 0;
                     }
                     else {
-                        try {
-                            origNode.dispError("File not found!");
-                        }
-                        catch (RemoteException e) {
-                            System.out.println("ERROR: " + e.getMessage());
-                        }
+                        this.notifyResult(r, 1, "File not found!");
                     }
+
+                    this.shareOwner(r, p, reality.getIndex());
                 }
-                // Forward routing data to neighbor nearest to dest point
                 else {
-                    NodeInterface nearestNeighbor =
-                            Utils.getNearestNeighbor(px, py, this.getAllNeighborsList());
-
-                    try {
-                        nearestNeighbor.sendMessage(r);
-                    }
-                    catch(Exception e) {
-                        try { origNode.dispError("ERROR: " + e.getMessage()); }
-                        catch (RemoteException e1) {
-                            System.out.println("ERROR: " + e1.getMessage());
-                        }
+                    // Answer from a replica on the way to the owner
+                    Reality replica = this.findReplicaReality(realityIndex, p, r.getFileName());
+                    if (replica != null) {
+                        replica.getRequestRate().record();
+                        this.notifyResult(r, 0, path);
+                        retval = 0;
                         break;
                     }
+
+                    // Skip ahead to owner if a previous search resolved it
+                    Integer status = this.forwardToCachedOwner(r, p);
+                    retval = (status != null) ? status : this.forwardMessage(r, p);
                 }
         }
 
@@ -394,387 +770,2126 @@ public class Node implements NodeInterface {
     }
 
     /**
-     * Update neighbor list based on given update from node.
+     * Forwards routing data to the neighbor nearest to given point.
      *
-     * @param updateInfo
+     * @param r - Routing data
+     * @param p - Coordinates of destination
      * @return 0 - Success
      *         1 - Failure
      */
-    public int sendUpdate(UpdateData updateInfo) {
-        Zone neighborZone = updateInfo.getZone();
-        NodeInterface neighbor = updateInfo.getNodeStub();
+    private int forwardMessage(RoutingData r, double[] p) {
+        r.addVisited(this.getID());
+        Set<NodeInterface> tried = new HashSet<>();
 
-        // Check if left neighbor
-        if (this.z.isLeftNeighbor(neighborZone)) {
-            List<NodeInterface> leftNeighbors = this.neighbors.getOrDefault("left", (new ArrayList<>()));
-            if (!leftNeighbors.contains(neighbor)) {
-                leftNeighbors.add(neighbor);
-                this.neighbors.put("left", leftNeighbors);
-            }
-        }
-        // Check if right neighbor
-        else if (this.z.isRightNeighbor(neighborZone)) {
-            List<NodeInterface> rightNeighbors =
-                    this.neighbors.getOrDefault("right", (new ArrayList<>()));
-            if (!rightNeighbors.contains(neighbor)) {
-                rightNeighbors.add(neighbor);
-                this.neighbors.put("right", rightNeighbors);
+        for (int attempt = 0; attempt < MAX_FORWARD_ATTEMPTS; attempt++) {
+            NodeInterface nearestNeighbor = this.getUnvisitedHop(r, p, tried);
+
+            if (nearestNeighbor == null) {
+                break;
             }
-        }
-        // Check if bottom neighbor
-        else if (this.z.isBottomNeighbor(neighborZone)) {
-            List<NodeInterface> botNeighbors =
-                    this.neighbors.getOrDefault("bottom", (new ArrayList<>()));
-            if (!botNeighbors.contains(neighbor)) {
-                botNeighbors.add(neighbor);
-                this.neighbors.put("bottom", botNeighbors);
+
+            try {
+                int status = nearestNeighbor.sendMessage(r);
+
+                // An asynchronous next hop only fails here if its queue is full
+                if (r.isAsync() && status != 0) {
+                    this.notifyResult(r, 1, "Failed to forward message: next hop is busy");
+                }
+                return status;
             }
-        }
-        // Check if top neighbor
-        else if (this.z.isTopNeighbor(neighborZone)) {
-            List<NodeInterface> topNeighbors =
-                    this.neighbors.getOrDefault("top", (new ArrayList<>()));
-            if (!topNeighbors.contains(neighbor)) {
-                topNeighbors.add(neighbor);
-                this.neighbors.put("top", topNeighbors);
+            catch (ConnectException | ConnectIOException | NoSuchObjectException e) {
+                // Message never reached neighbor, safe to try next best one
+                this.suspectNeighbor(nearestNeighbor);
+                tried.add(nearestNeighbor);
             }
-        }
-        // Remove as neighbor if currently one
-        else {
-            for (List<NodeInterface> neighborNodes : neighbors.values()) {
-                if (neighborNodes.contains(neighbor)) {
-                    neighborNodes.remove(neighbor);
-                }
+            catch (RemoteException e) {
+                // Neighbor may just be slow, heartbeats decide if it is dead
+                this.notifyResult(r, 1, "Failed to forward message: " + e.getMessage());
+                return 1;
             }
         }
 
-        return 0;
+        this.notifyResult(r, 1, "Failed to forward message: no reachable neighbor");
+        return 1;
     }
 
     /**
-     * Sets new zone's neighbors.
+     * Tells origin of a search that we own its point, so its later
+     * searches can skip ahead. Requests only carry the ID's of the nodes
+     * that forwarded them, so those learn owners from their own probes.
+     * Sent in the background after the result has been reported.
      *
+     * @param r - Routing data of resolved search
+     * @param p - Coordinates of point
+     * @param reality - Reality in which we own point
+     */
+    private void shareOwner(RoutingData r, double[] p, int reality) {
+        NodeInterface origNode = r.getOrigNode();
+        if (origNode.equals(this.selfStub)) {
+            return;
+        }
+
+        UpdateData owner = new UpdateData(reality, this.getZone(reality), this.selfStub);
+        try {
+            this.updateExecutor.execute(() -> {
+                try {
+                    origNode.cacheOwner(p, owner);
+                }
+                catch (RemoteException e) {
+                    // Cache is only a hint
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            // Cache is only a hint
+        }
+    }
+
+    /**
+     * Records owner of a point resolved by a search we forwarded or by a
+     * probe, and offers it as a shortcut.
+     *
+     * @param p - Coordinates of point
+     * @param owner - Reality, zone and stub of owner
+     */
+    public void cacheOwner(double[] p, UpdateData owner) {
+        this.ownerCache.put(p, owner.getReality(), owner.getNodeStub());
+
+        if (owner.getReality() >= 0 && owner.getReality() < REALITIES &&
+                !owner.getNodeStub().equals(this.selfStub)) {
+            Reality reality = this.realities.get(owner.getReality());
+            reality.getShortcuts().offer(reality.getZone(), owner.getNodeStub(), owner.getZone());
+        }
+    }
+
+    /**
+     * Forwards search straight to cached owner of its point. A stale owner
+     * routes the search on from its own zone.
+     *
+     * @param r - Routing data
+     * @param p - Coordinates of destination
+     * @return Integer - Status of forward, null if owner is not cached or
+     *                   the search never reached it
+     */
+    private Integer forwardToCachedOwner(RoutingData r, double[] p) {
+        NodeInterface owner = this.ownerCache.get(p, r.getReality());
+        if (owner == null || owner.equals(this.selfStub) ||
+                this.suspectedNeighbors.contains(owner) || this.isVisited(r, owner)) {
+            return null;
+        }
+
+        r.addVisited(this.getID());
+        try {
+            int status = owner.sendMessage(r);
+
+            // An asynchronous owner only fails here if its queue is full
+            if (r.isAsync() && status != 0) {
+                this.notifyResult(r, 1, "Failed to forward message: next hop is busy");
+            }
+            return status;
+        }
+        catch (ConnectException | ConnectIOException | NoSuchObjectException e) {
+            // Search never reached owner, safe to route it normally
+            this.ownerCache.invalidate(owner);
+            return null;
+        }
+        catch (RemoteException e) {
+            // Search may have been delivered, routing it again could run it twice
+            this.ownerCache.invalidate(owner);
+            this.notifyResult(r, 1, "Failed to forward message: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * Returns state of reality in which given point lies in our zone, null
+     * if it lies outside our zones.
+     *
+     * @param reality - Index of reality, ANY_REALITY to check all
+     * @param p - Coordinates of point
+     * @return Reality
+     */
+    private Reality findOwningReality(int reality, double[] p) {
+        for (Reality state : this.realities) {
+            if (reality != RoutingData.ANY_REALITY && reality != state.getIndex())
+                continue;
+
+            if (state.getZone() != null && state.getZone().isPointInZone(p)) {
+                return state;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns state of reality in which our zone overlaps given region,
+     * null if no zone does.
+     *
+     * @param reality - Index of reality, ANY_REALITY to check all
+     * @param region - Region of coordinate space
+     * @return Reality
+     */
+    private Reality findOverlappingReality(int reality, Zone region) {
+        for (Reality state : this.realities) {
+            if (reality != RoutingData.ANY_REALITY && reality != state.getIndex())
+                continue;
+
+            if (state.getZone() != null && state.getZone().intersects(region)) {
+                return state;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Sends data items of our zone lying in the region of a range request
+     * to its origin, then passes the request on to neighbors whose zones
+     * overlap the region in the background. Copies of a request already
+     * scanned here are dropped. A neighbor is only marked visited once it
+     * was sent the request, so a failed send leaves its zone reachable
+     * through the neighbors sent copies after it.
+     *
+     * @param r - Routing data of range request
+     * @param reality - Reality in which our zone overlaps region
+     * @return 0 - Success
+     *         1 - Failure
+     */
+    private int scanRange(RoutingData r, Reality reality) {
+        if (!this.seenRanges.add(Arrays.asList(r.getOrigNode(), r.getRequestID()))) {
+            return 0;
+        }
+
+        // Keep scan within one partitioning of the space
+        r.setReality(reality.getIndex());
+        reality.getRequestRate().record();
+
+        SpatialIndex items = reality.getDataItems().within(r.getRegion());
+        if (!items.isEmpty()) {
+            try {
+                r.getOrigNode().receiveRange(r.getRequestID(), this.getID(), items);
+            }
+            catch (RemoteException e) {
+                System.out.println("ERROR: " + e.getMessage());
+                return 1;
+            }
+        }
+
+        List<NodeInterface> targets = new ArrayList<>();
+        for (Map.Entry<NodeInterface, Zone> neighbor : reality.getNeighborZones().entrySet()) {
+            NodeInterface node = neighbor.getKey();
+            if (neighbor.getValue().intersects(r.getRegion()) &&
+                    !this.suspectedNeighbors.contains(node) && !this.isVisited(r, node)) {
+                targets.add(node);
+            }
+        }
+        r.addVisited(this.getID());
+
+        try {
+            this.updateExecutor.execute(() -> {
+                for (NodeInterface target : targets) {
+                    try {
+                        target.sendMessage(r);
+
+                        // Neighbors sent a copy by us need not be sent one by others
+                        Integer targetID = this.peerIDs.get(target);
+                        if (targetID != null) {
+                            r.addVisited(targetID);
+                        }
+                    }
+                    catch (ConnectException | ConnectIOException | NoSuchObjectException e) {
+                        this.suspectNeighbor(target);
+                        System.out.println("ERROR: " + e.getMessage());
+                    }
+                    catch (RemoteException e) {
+                        System.out.println("ERROR: " + e.getMessage());
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            System.out.println("ERROR: Range fan-out rejected");
+            return 1;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Displays data items of a range request found at a peer.
+     *
+     * @param requestID - ID of range request
+     * @param peerID - ID of peer holding items
+     * @param items - Data items lying in region
+     */
+    public void receiveRange(long requestID, int peerID, SpatialIndex items) {
+        System.out.println("\nRange request " + requestID + ": peer-" + peerID + " holds " +
+                           this.dataItemsToString(items));
+    }
+
+    /**
+     * Returns state of reality holding a replica of given file at given
+     * point, null if we hold none. A replica is only served if the content
+     * it references is stored, i.e. was verified against its hash.
+     *
+     * @param reality - Index of reality, ANY_REALITY to check all
+     * @param p - Coordinates of point
+     * @param fileName - Name of file
+     * @return Reality
+     */
+    private Reality findReplicaReality(int reality, double[] p, String fileName) {
+        for (Reality state : this.realities) {
+            if (reality != RoutingData.ANY_REALITY && reality != state.getIndex())
+                continue;
+
+            String hash = state.getReplicas().get(p, fileName);
+            if (hash != null && this.contentStore.contains(hash)) {
+                return state;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Pushes replicas of given data items to the least loaded live
+     * neighbors in the background. Neighbors are ranked by request rate,
+     * then by number of items stored. The other neighbors are told to drop
+     * copies they may hold from an earlier placement, or of an older
+     * content under the same name.
+     *
+     * @param reality - Reality state
+     * @param items - Data items owned by us
+     * @param count - Number of neighbors to replicate to
+     * @param exclude - Neighbor already holding the items, may be null
+     */
+    private void replicate(Reality reality, SpatialIndex items, int count, NodeInterface exclude) {
+        if (count <= 0 || items.isEmpty()) {
+            return;
+        }
+
+        try {
+            this.replicaExecutor.execute(() -> {
+                List<LoadInfo> loads = new ArrayList<>();
+                for (NodeInterface neighbor : reality.getAllNeighborsList()) {
+                    if (this.suspectedNeighbors.contains(neighbor) || neighbor.equals(exclude))
+                        continue;
+
+                    try {
+                        LoadInfo load = neighbor.getLoad(reality.getIndex());
+                        if (load != null) {
+                            loads.add(load);
+                        }
+                    }
+                    catch (ConnectException | ConnectIOException | NoSuchObjectException e) {
+                        this.suspectNeighbor(neighbor);
+                    }
+                    catch (RemoteException e) {
+                        // Left out of this round
+                    }
+                }
+
+                loads.sort(Comparator.comparingDouble(LoadInfo::getRequestRate)
+                                     .thenComparingInt(LoadInfo::getItemCount));
+
+                int targets = Math.min(count, loads.size());
+                for (LoadInfo load : loads.subList(0, targets)) {
+                    try {
+                        load.getNodeStub().storeReplicas(reality.getIndex(), items, this.selfStub);
+                    }
+                    catch (RemoteException e) {
+                        System.out.println("ERROR: " + e.getMessage());
+                    }
+                }
+                for (LoadInfo load : loads.subList(targets, loads.size())) {
+                    try {
+                        load.getNodeStub().dropReplicas(reality.getIndex(), items);
+                    }
+                    catch (RemoteException e) {
+                        System.out.println("ERROR: " + e.getMessage());
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            System.out.println("ERROR: Replication queue full");
+        }
+    }
+
+    /**
+     * Accepts replicas of data items owned by a neighbor. Files not stored
+     * yet are fetched from the owner in the background and the replicas are
+     * indexed once all of them are stored, so the owner is not held up by
+     * the copy.
+     *
+     * @param reality - Index of reality
+     * @param items - Data items to replicate
+     * @param owner - Remote stub of owner
+     * @return 0 - Accepted
+     *         1 - Failure
+     */
+    public int storeReplicas(int reality, SpatialIndex items, NodeInterface owner) {
+        if (reality < 0 || reality >= REALITIES || this.getZone(reality) == null) {
+            return 1;
+        }
+
+        try {
+            this.replicaExecutor.execute(() -> {
+                if (!this.fetchContents(items, owner)) {
+                    System.out.println("Failed to store replicas");
+                    return;
+                }
+                synchronized (this.indexLog) {
+                    this.realities.get(reality).getReplicas().addAll(items);
+                    this.indexLog.logAddAll(reality, IndexLog.REPLICA, items);
+                }
+                this.checkSnapshot();
+            });
+        }
+        catch (RejectedExecutionException e) {
+            System.out.println("ERROR: Replication queue full");
+            return 1;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Drops our replicas of given files, placed on other neighbors by
+     * their owner. Files held for a joining node are kept. (Remote interface)
+     *
+     * @param reality - Index of reality
+     * @param items - Files of owner, replicas of them are dropped whatever their content
+     */
+    public void dropReplicas(int reality, SpatialIndex items) {
+        if (reality < 0 || reality >= REALITIES) {
+            return;
+        }
+        Reality state = this.realities.get(reality);
+
+        SpatialIndex stale = new SpatialIndex();
+        for (Map.Entry<Point, Map<String, String>> entry : items.entrySet()) {
+            double[] p = entry.getKey().toArray();
+            for (String fileName : entry.getValue().keySet()) {
+                String hash = state.getReplicas().get(p, fileName);
+                if (hash != null && !state.getHandoffs().contains(p, fileName)) {
+                    stale.add(p, fileName, hash);
+                }
+            }
+        }
+
+        this.removeReplicas(state, stale);
+    }
+
+    /**
+     * Drops replicas no longer held for a neighbor: those lying in our own
+     * zone, which we own now, and those lying in no neighbor's zone, whose
+     * owner stopped being our neighbor. Files held for a joining node are
+     * kept.
+     *
+     * @param reality - Reality state
+     */
+    private void pruneReplicas(Reality reality) {
+        Zone ownZone = reality.getZone();
+        Collection<Zone> neighborZones = reality.getNeighborZones().values();
+
+        SpatialIndex stale = new SpatialIndex();
+        for (Map.Entry<Point, Map<String, String>> entry : reality.getReplicas().entrySet()) {
+            double[] p = entry.getKey().toArray();
+            boolean held = false;
+            if (ownZone != null && !ownZone.isPointInZone(p)) {
+                for (Zone zone : neighborZones) {
+                    if (zone.isPointInZone(p)) {
+                        held = true;
+                        break;
+                    }
+                }
+            }
+            if (held)
+                continue;
+
+            for (Map.Entry<String, String> file : entry.getValue().entrySet()) {
+                if (!reality.getHandoffs().contains(p, file.getKey())) {
+                    stale.add(p, file.getKey(), file.getValue());
+                }
+            }
+        }
+
+        this.removeReplicas(reality, stale);
+    }
+
+    /**
+     * Removes given replicas and deletes contents no longer referenced.
+     *
+     * @param reality - Reality state
+     * @param stale - Replicas to remove
+     */
+    private void removeReplicas(Reality reality, SpatialIndex stale) {
+        if (stale.isEmpty()) {
+            return;
+        }
+
+        SpatialIndex removed;
+        synchronized (this.indexLog) {
+            removed = reality.getReplicas().removeAll(stale);
+            this.indexLog.logRemoveAll(reality.getIndex(), IndexLog.REPLICA, removed);
+        }
+        this.checkSnapshot();
+
+        for (String hash : removed.contentHashes()) {
+            if (!this.isContentStored(hash, null))
+                this.contentStore.delete(hash);
+        }
+    }
+
+    /**
+     * Returns neighbor or shortcut closest to given point that has not
+     * forwarded given request yet.
+     *
+     * @param r - Routing data
+     * @param p - Coordinates of destination
+     * @param exclude - Neighbors not to return, visited ones found are added
+     * @return NodeInterface
+     */
+    private NodeInterface getUnvisitedHop(RoutingData r, double[] p, Set<NodeInterface> exclude) {
+        while (true) {
+            NodeInterface nextHop = this.getNextHop(r.getReality(), p, exclude);
+            if (nextHop == null || !this.isVisited(r, nextHop)) {
+                return nextHop;
+            }
+            exclude.add(nextHop);
+        }
+    }
+
+    /**
+     * Returns if given node has forwarded a request. A node whose ID cannot
+     * be looked up is taken as not visited, sending to it fails anyway.
+     *
+     * @param r - Routing data
+     * @param node - Remote stub of node
+     * @return boolean
+     */
+    private boolean isVisited(RoutingData r, NodeInterface node) {
+        Integer id = this.peerIDs.get(node);
+        if (id == null) {
+            try {
+                id = node.getID();
+            }
+            catch (RemoteException e) {
+                return false;
+            }
+            this.peerIDs.put(node, id);
+        }
+
+        return r.getVisited().contains(id);
+    }
+
+    /**
+     * Returns neighbor or shortcut closest to given point. With ANY_REALITY
+     * the nearest node of every reality is considered and the closest one
+     * is taken.
+     *
+     * Suspected nodes and given ones are skipped.
+     *
+     * @param reality - Index of reality, ANY_REALITY to check all
+     * @param p - Coordinates of destination
+     * @param exclude - Neighbors not to return
+     * @return NodeInterface
+     */
+    private NodeInterface getNextHop(int reality, double[] p, Set<NodeInterface> exclude) {
+        NodeInterface nextHop = null;
+        Zone nextHopZone = null;
+
+        for (Reality state : this.realities) {
+            if (reality != RoutingData.ANY_REALITY && reality != state.getIndex())
+                continue;
+            if (state.getZone() == null)
+                continue;
+
+            List<NodeInterface> liveNeighbors = new ArrayList<>();
+            for (NodeInterface neighbor : state.getAllNeighborsList()) {
+                if (!this.suspectedNeighbors.contains(neighbor) && !exclude.contains(neighbor)) {
+                    liveNeighbors.add(neighbor);
+                }
+            }
+
+            // Shortcuts compete with neighbors on their last known zone
+            Map<NodeInterface, Zone> zones = state.getNeighborZones();
+            Map<NodeInterface, Zone> shortcuts = state.getShortcuts().getShortcuts();
+            if (!shortcuts.isEmpty()) {
+                zones = new HashMap<>(zones);
+                for (Map.Entry<NodeInterface, Zone> shortcut : shortcuts.entrySet()) {
+                    NodeInterface node = shortcut.getKey();
+                    if (zones.containsKey(node) || this.suspectedNeighbors.contains(node) ||
+                            exclude.contains(node) || node.equals(this.selfStub))
+                        continue;
+
+                    liveNeighbors.add(node);
+                    zones.put(node, shortcut.getValue());
+                }
+            }
+
+            NodeInterface candidate = Utils.getNearestNeighbor(state.getIndex(), p,
+                    liveNeighbors, zones);
+            if (candidate == null)
+                continue;
+
+            Zone candidateZone = zones.get(candidate);
+            if (nextHop == null || Utils.isCloser(candidateZone, nextHopZone, p)) {
+                nextHop = candidate;
+                nextHopZone = candidateZone;
+            }
+        }
+
+        return nextHop;
+    }
+
+    /**
+     * Returns if given content is referenced by a stored or replicated file
+     * of any reality other than the excluded one.
+     *
+     * @param hash - Content hash
+     * @param except - Reality to skip, null to check all
+     * @return boolean
+     */
+    private boolean isContentStored(String hash, Reality except) {
+        for (Reality state : this.realities) {
+            if (state == except)
+                continue;
+
+            if (state.getDataItems().containsContent(hash) ||
+                    state.getReplicas().containsContent(hash)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Downloads contents of given data items from a remote node, skipping
+     * those stored already.
+     *
+     * @param items - Data items
+     * @param srcStub - Remote stub of node holding contents
+     * @return boolean - true if all contents are stored
+     */
+    private boolean fetchContents(SpatialIndex items, NodeInterface srcStub) {
+        return this.fetchContentsConfirmed(items, srcStub).size() == items.contentHashes().size();
+    }
+
+    /**
+     * Downloads contents of given data items from a remote node, up to
+     * TRANSFER_THREADS at a time, and returns those stored afterwards.
+     *
+     * @param items - Data items
+     * @param srcStub - Remote stub of node holding contents
+     * @return Set<String> - Hashes of contents stored
+     */
+    private Set<String> fetchContentsConfirmed(SpatialIndex items, NodeInterface srcStub) {
+        Set<String> stored = ConcurrentHashMap.newKeySet();
+        int srcID;
+        try {
+            srcID = srcStub.getID();
+        }
+        catch (RemoteException e) {
+            System.out.println("ERROR: " + e.getMessage());
+            return stored;
+        }
+
+        List<Callable<Void>> downloads = new ArrayList<>();
+        for (String hash : items.contentHashes()) {
+            String remoteName = DATA_ITEMS_ROOT + "-" + srcID + "/" + hash;
+            downloads.add(() -> {
+                if (this.contentStore.fetch(srcStub, remoteName, hash)) {
+                    stored.add(hash);
+                }
+                else {
+                    System.out.println("Failed to download content " + hash);
+                }
+                return null;
+            });
+        }
+
+        try {
+            this.transferExecutor.invokeAll(downloads);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        return new HashSet<>(stored);
+    }
+
+    /**
+     * Splits our zone of a reality for a joining node. The split of zone,
+     * neighbors and data items and their log records are made under the
+     * zone lock, so concurrent joins and leaves see one zone at a time.
+     *
+     * @param reality - Reality being split
+     * @param p - Join point
+     * @param origNode - Remote stub of joining node
+     * @return ZoneData - Zone for joining node, null if point is no longer in our zone
+     */
+    private ZoneData splitForJoin(Reality reality, double[] p, NodeInterface origNode) {
+        synchronized (reality.getZoneLock()) {
+            // Zone may have been split or handed off while waiting for lock
+            Zone currZone = reality.getZone();
+            if (currZone == null || !currZone.isPointInZone(p) || reality.isLeaving()) {
+                return null;
+            }
+
+            ZoneData newZone = new ZoneData();
+            newZone.setReality(reality.getIndex());
+
+            // Split a copy of zone coordinate space and publish it, routing
+            // threads may be reading the current zone
+            Zone splitZone = new Zone(currZone);
+            int splitDim = splitZone.splitZone(newZone);
+            reality.setZone(splitZone);
+
+            // Split zone neighbors
+            this.splitZoneNeighbors(reality, newZone, origNode, splitDim);
+
+            // Split zone dataitems
+            synchronized (this.indexLog) {
+                this.splitZoneDataItems(reality, newZone, splitDim);
+                this.indexLog.logZone(reality.getIndex(), splitZone);
+                this.indexLog.logSplit(reality.getIndex(), splitDim,
+                                       newZone.getZone().getStart(splitDim));
+            }
+
+            // Set dest zone for file transfers
+            newZone.setDestStub(this.selfStub);
+
+            return newZone;
+        }
+    }
+
+    /**
+     * Holds data items handed to a joining node among our replicas until
+     * it confirms their contents.
+     *
+     * @param reality - Reality that was split
+     * @param items - Data items of new zone
+     */
+    private void holdHandoff(Reality reality, SpatialIndex items) {
+        if (items.isEmpty()) {
+            return;
+        }
+
+        synchronized (this.indexLog) {
+            reality.getHandoffs().addAll(items);
+            reality.getReplicas().addAll(items);
+            this.indexLog.logAddAll(reality.getIndex(), IndexLog.REPLICA, items);
+        }
+        this.checkSnapshot();
+    }
+
+    /**
+     * Returns if a joining node whose zone assignment failed may own the
+     * zone anyway, i.e. unless it says it has no such zone.
+     *
+     * @param origNode - Remote stub of joining node
+     * @param newZone - Zone split for joining node
+     * @return boolean
+     */
+    private boolean mayOwnZone(NodeInterface origNode, ZoneData newZone) {
+        try {
+            return newZone.getZone().equals(origNode.getZone(newZone.getReality()));
+        }
+        catch (RemoteException e) {
+            System.out.println("ERROR: Outcome of zone assignment unknown: " + e.getMessage());
+            return true;
+        }
+    }
+
+    /**
+     * Releases data items handed to a new zone whose node confirmed their
+     * contents. They are no longer held as replicas, unless replication
+     * keeps them here as neighbor of the new zone, and contents not
+     * referenced any more are deleted. (Remote interface)
+     *
+     * @param reality - Index of reality
+     * @param items - Data items indexed by new node
+     */
+    public void confirmItems(int reality, SpatialIndex items) {
+        if (reality < 0 || reality >= REALITIES || items.isEmpty()) {
+            return;
+        }
+        Reality state = this.realities.get(reality);
+
+        SpatialIndex released = state.getHandoffs().removeAll(items);
+        if (REPLICAS == 0) {
+            this.removeReplicas(state, released);
+        }
+    }
+
+    /**
+     * Takes back a zone split for a joining node that could not be
+     * assigned it. The zone is merged back and its data items indexed
+     * again, and neighbors are told we replace the joining node. If our
+     * zone changed in the meantime and cannot be merged, the items stay
+     * held as replicas so they are reachable through us.
+     *
+     * @param reality - Reality that was split
+     * @param newZone - Zone split for joining node
+     * @param origNode - Remote stub of joining node
+     */
+    private void undoSplit(Reality reality, ZoneData newZone, NodeInterface origNode) {
+        synchronized (reality.getZoneLock()) {
+            reality.getHandoffs().removeAll(newZone.getDataItems());
+
+            Zone currZone = reality.getZone();
+            Zone merged = (currZone == null) ? null : currZone.merge(newZone.getZone());
+            if (merged == null) {
+                return;
+            }
+
+            reality.getReplicas().removeAll(newZone.getDataItems());
+            reality.getDataItems().addAll(newZone.getDataItems());
+            reality.setZone(merged);
+
+            // Neighbors of merged zone come from both neighbor tables
+            Map<NodeInterface, Zone> candidates = new HashMap<>(reality.getNeighborZones());
+            candidates.putAll(newZone.getNeighborZones());
+            candidates.remove(this.selfStub);
+            candidates.remove(origNode);
+
+            this.rebuildNeighbors(reality, merged, candidates);
+            this.snapshotState();
+            this.announceZone(reality, merged, origNode);
+        }
+    }
+
+    /**
+     * Downloads content of an insert reaching the owner of its point and
+     * stores the file name there.
+     *
+     * @param r - Routing data of insert
+     * @param reality - Reality owning point
+     * @param p - Point of file
+     * @param onlyFileName - File name without directories
+     * @return int - 0 if file was stored, 1 otherwise
+     */
+    private int storeInsert(RoutingData r, Reality reality, double[] p, String onlyFileName) {
+        String fileName = r.getFileName();
+        String hash = r.getContentHash();
+
+        // Content is only downloaded if not stored for any name, point or reality
+        if (!this.contentStore.fetch(r.getOrigNode(), fileName, hash)) {
+            System.out.println("Failed to download file");
+            this.notifyResult(r, 1, "ERROR: Failed to download file " + fileName);
+            return 1;
+        }
+
+        // Store filename in spatial index, unless zone moved during download
+        synchronized (this.indexLog) {
+            Zone zone = reality.getZone();
+            if (zone == null || !zone.isPointInZone(p) || reality.isLeaving()) {
+                this.notifyResult(r, 1, "ERROR: peer-" + this.getID() +
+                        " handed off its zone, try again");
+                return 1;
+            }
+            reality.getDataItems().add(p, onlyFileName, hash);
+            this.indexLog.logAdd(reality.getIndex(), IndexLog.DATA, p, onlyFileName, hash);
+        }
+        this.checkSnapshot();
+
+        // Return path to be displayed at origNode
+        this.notifyResult(r, 0, r.getPath());
+
+        SpatialIndex item = new SpatialIndex();
+        item.add(p, onlyFileName, hash);
+        this.replicate(reality, item, REPLICAS, null);
+
+        return 0;
+    }
+
+    /**
+     * Reports outcome of a routing request to its origin node. Synchronous
+     * requests display the path or error directly, asynchronous ones
+     * complete the pending request ID.
+     *
+     * @param r - Routing data
+     * @param status - 0 for success, 1 for failure
+     * @param msg - Path on success, error message on failure
+     */
+    private void notifyResult(RoutingData r, int status, String msg) {
+        // Probes are sampled in the background, nothing waits for them
+        if (r.getOp().equals("probe")) {
+            return;
+        }
+
+        NodeInterface origNode = r.getOrigNode();
+        try {
+            if (r.isAsync()) {
+                origNode.completeRequest(r.getRequestID(), status, msg);
+            }
+            else if (status == 0) {
+                origNode.dispPath(msg);
+            }
+            else {
+                origNode.dispError(msg);
+            }
+        }
+        catch (RemoteException e) {
+            System.out.println("ERROR: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Assigns a request ID to routing data originating at this node and,
+     * if asynchronous routing is enabled, tracks it until completion.
+     *
+     * @param r - Routing data
+     */
+    public void trackRequest(RoutingData r) {
+        r.setRequestID(this.nextRequestID.getAndIncrement());
+        r.setAsync(this.asyncRouting);
+
+        if (this.asyncRouting) {
+            long now = System.currentTimeMillis();
+            this.expireRequests(now);
+            this.pendingRequests.put(r.getRequestID(),
+                    new PendingRequest(r.getOp(), now + REQUEST_TIMEOUT_MS));
+        }
+    }
+
+    /**
+     * Drops pending requests whose reply did not arrive in time, as a reply
+     * is lost whenever a node on the way fails.
+     *
+     * @param now - Current time in milliseconds
+     */
+    private void expireRequests(long now) {
+        Iterator<Map.Entry<Long, PendingRequest>> it = this.pendingRequests.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, PendingRequest> entry = it.next();
+            if (entry.getValue().expiresAt <= now) {
+                it.remove();
+                System.out.println("\nRequest " + entry.getKey() + " (" + entry.getValue().op + ") timed out");
+            }
+        }
+    }
+
+    /**
+     * Completes an asynchronous request originated by this node.
+     *
+     * @param requestID - ID of completed request
+     * @param status - 0 for success, 1 for failure
+     * @param msg - Path on success, error message on failure
+     */
+    public void completeRequest(long requestID, int status, String msg) {
+        PendingRequest request = this.pendingRequests.remove(requestID);
+        if (request == null) {
+            System.out.println("Request " + requestID + " is not pending");
+            return;
+        }
+        String op = request.op;
+
+        System.out.println("\nRequest " + requestID + " (" + op + ") " +
+                           ((status == 0) ? "completed" : "failed"));
+        if (status != 0) {
+            this.dispError(msg);
+        }
+        else if (op.equals("join")) {
+            System.out.println(msg);
+        }
+        else {
+            this.dispPath(msg);
+        }
+    }
+
+    /**
+     * Returns if requests originated at this node are routed asynchronously.
+     *
+     * @return boolean
+     */
+    public boolean isAsyncRouting() {
+        return asyncRouting;
+    }
+
+    /**
+     * Sets if requests originated at this node are routed asynchronously.
+     *
+     * @param asyncRouting - true for asynchronous routing
+     */
+    public void setAsyncRouting(boolean asyncRouting) {
+        this.asyncRouting = asyncRouting;
+    }
+
+    /**
+     * Stops background workers of node.
+     */
+    public void shutdown() {
+        this.routingExecutor.shutdown();
+        this.updateExecutor.shutdown();
+        this.transferExecutor.shutdown();
+        this.replicaExecutor.shutdown();
+
+        if (this.heartbeatExecutor != null) {
+            this.heartbeatExecutor.shutdown();
+            this.pingExecutor.shutdown();
+        }
+
+        if (this.dataServer != null) {
+            this.dataServer.stop();
+        }
+
+        if (this.indexLog != null) {
+            this.indexLog.close();
+        }
+    }
+
+    /**
+     * Returns load of our zone in given reality.
+     *
+     * @param reality - Index of reality
+     * @return LoadInfo - Load of zone, null if we have no zone in reality
+     */
+    public LoadInfo getLoad(int reality) {
+        if (reality < 0 || reality >= REALITIES) {
+            return null;
+        }
+        Reality state = this.realities.get(reality);
+        Zone zone = state.getZone();
+        if (zone == null) {
+            return null;
+        }
+
+        SpatialIndex dataItems = state.getDataItems();
+        long bytes = 0;
+        for (String hash : dataItems.contentHashes()) {
+            bytes += this.contentStore.getFile(hash).length();
+        }
+
+        return new LoadInfo(this.selfStub, zone, dataItems.size(), bytes,
+                            state.getRequestRate().perSecond());
+    }
+
+    /**
+     * Returns load of our zone and of the zones of our live neighbors in
+     * given reality. Neighbors are asked in parallel and those not
+     * answering within a heartbeat interval are left out.
+     *
+     * @param reality - Index of reality
+     * @return List<LoadInfo>
+     */
+    public List<LoadInfo> sampleLoad(int reality) {
+        List<LoadInfo> loads = new ArrayList<>();
+        LoadInfo ownLoad = this.getLoad(reality);
+        if (ownLoad == null) {
+            return loads;
+        }
+        loads.add(ownLoad);
+
+        List<Callable<LoadInfo>> requests = new ArrayList<>();
+        for (NodeInterface neighbor : this.getAllNeighborsList(reality)) {
+            if (!this.suspectedNeighbors.contains(neighbor)) {
+                requests.add(() -> neighbor.getLoad(reality));
+            }
+        }
+
+        try {
+            for (Future<LoadInfo> result : this.updateExecutor.invokeAll(requests,
+                    HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                try {
+                    LoadInfo load = result.get();
+                    if (load != null) {
+                        loads.add(load);
+                    }
+                }
+                catch (ExecutionException | CancellationException e) {
+                    // Neighbor left out of sample
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        return loads;
+    }
+
+    /**
+     * Starts sending periodic heartbeats to neighbors.
+     */
+    public void startHeartbeat() {
+        this.heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.pingExecutor = Executors.newFixedThreadPool(HEARTBEAT_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "ping");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.heartbeatExecutor.scheduleWithFixedDelay(this::heartbeat,
+                HEARTBEAT_INTERVAL_MS, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Pings all neighbors in parallel. A neighbor that misses
+     * MAX_MISSED_HEARTBEATS in a row is suspected dead until it answers
+     * again. Pings not answered within a heartbeat interval count as missed.
+     */
+    private void heartbeat() {
+        Set<NodeInterface> neighbors = new HashSet<>();
+        for (Reality reality : this.realities) {
+            neighbors.addAll(reality.getAllNeighborsList());
+        }
+
+        // Forget nodes that are no longer neighbors
+        this.missedHeartbeats.keySet().retainAll(neighbors);
+        this.suspectedNeighbors.retainAll(neighbors);
+
+        List<NodeInterface> targets = new ArrayList<>(neighbors);
+        List<Callable<Boolean>> pings = new ArrayList<>();
+        for (NodeInterface neighbor : targets) {
+            pings.add(neighbor::ping);
+        }
+
+        try {
+            List<Future<Boolean>> results = this.pingExecutor.invokeAll(pings,
+                    HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            for (int i = 0; i < results.size(); i++) {
+                NodeInterface neighbor = targets.get(i);
+                boolean alive;
+                try {
+                    alive = results.get(i).get();
+                }
+                catch (ExecutionException | CancellationException e) {
+                    alive = false;
+                }
+
+                if (alive) {
+                    this.missedHeartbeats.remove(neighbor);
+                    this.suspectedNeighbors.remove(neighbor);
+                }
+                else if (this.missedHeartbeats.merge(neighbor, 1, Integer::sum) >= MAX_MISSED_HEARTBEATS) {
+                    this.suspectNeighbor(neighbor);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (++this.heartbeatRounds % SHORTCUT_REFRESH_ROUNDS == 0) {
+            this.refreshShortcuts();
+        }
+    }
+
+    /**
+     * Fetches current zones of shortcuts, dropping those gone or no longer
+     * remote and moving the others to the level of their zone. A probe is
+     * then routed to a random point at the closest distance scale without
+     * a shortcut, whose owner is offered as one.
+     */
+    private void refreshShortcuts() {
+        for (Reality reality : this.realities) {
+            Zone ownZone = reality.getZone();
+            if (ownZone == null)
+                continue;
+
+            ShortcutTable shortcuts = reality.getShortcuts();
+            for (NodeInterface node : shortcuts.getShortcuts().keySet()) {
+                try {
+                    shortcuts.offer(ownZone, node, node.getZone(reality.getIndex()));
+                }
+                catch (RemoteException e) {
+                    shortcuts.remove(node);
+                }
+            }
+
+            int level = shortcuts.emptyLevel();
+            if (level >= 0) {
+                RoutingData probe = new RoutingData(ShortcutTable.samplePoint(ownZone, level),
+                                                    this.selfStub, "probe");
+                probe.setReality(reality.getIndex());
+                probe.setAsync(true);
+                this.sendMessage(probe);
+            }
+        }
+    }
+
+    /**
+     * Marks neighbor as suspected dead so routing skips it. Only missed
+     * heartbeats and calls that could not reach the neighbor get here, a
+     * call failing after it was delivered says nothing about liveness.
+     *
+     * @param neighbor - Remote stub of neighbor
+     */
+    private void suspectNeighbor(NodeInterface neighbor) {
+        if (this.suspectedNeighbors.add(neighbor)) {
+            System.out.println("Neighbor suspected dead, routing around it");
+        }
+    }
+
+    /**
+     * Answers heartbeat of a neighbor.
+     *
+     * @return boolean - Always true
+     */
+    public boolean ping() {
+        return true;
+    }
+
+    /**
+     * Update neighbor list based on given update from node.
+     *
+     * @param updateInfo
+     * @return 0 - Success
+     *         1 - Failure
+     */
+    public int sendUpdate(UpdateData updateInfo) {
+        Zone neighborZone = updateInfo.getZone();
+        NodeInterface neighbor = updateInfo.getNodeStub();
+
+        // Ignore updates for realities we have no zone in
+        if (updateInfo.getReality() < 0 || updateInfo.getReality() >= REALITIES) {
+            return 1;
+        }
+        Reality reality = this.realities.get(updateInfo.getReality());
+        Zone z = reality.getZone();
+        if (z == null) {
+            return 1;
+        }
+
+        // Find position of sender relative to our zone
+        String neighborPosition = z.neighborPosition(neighborZone);
+        NodeInterface departed = updateInfo.getDepartedStub();
+
+        // Zone of sender changed, cached points may have moved
+        this.ownerCache.invalidate(neighbor);
+        reality.getShortcuts().update(neighbor, neighborZone);
+        if (departed != null) {
+            this.ownerCache.invalidate(departed);
+            reality.getShortcuts().remove(departed);
+        }
+
+        reality.updateNeighbors((neighbors, neighborZones) -> {
+            // Drop node that handed its zone to sender
+            if (departed != null) {
+                for (List<NodeInterface> neighborNodes : neighbors.values()) {
+                    neighborNodes.remove(departed);
+                }
+                neighborZones.remove(departed);
+            }
+
+            // Remove as neighbor, then add back along matching position
+            for (List<NodeInterface> neighborNodes : neighbors.values()) {
+                neighborNodes.remove(neighbor);
+            }
+            if (neighborPosition != null) {
+                neighbors.get(neighborPosition).add(neighbor);
+            }
+
+            // Track latest zone of neighbor for local next hop selection
+            if (neighborPosition != null) {
+                neighborZones.put(neighbor, neighborZone);
+            }
+            else {
+                neighborZones.remove(neighbor);
+            }
+        });
+        this.logNeighbors(reality);
+
+        return 0;
+    }
+
+    /**
+     * Updates neighbor list after a neighbor's zone was split. Both halves
+     * are classified against our zone in one step and our zone is returned
+     * so the splitting node can classify us without further calls.
+     *
+     * @param split - Zones and stubs of both halves of split zone
+     * @return Zone - Our zone, null if we have none in given reality
+     */
+    public Zone sendSplit(SplitData split) {
+        if (split.getReality() < 0 || split.getReality() >= REALITIES) {
+            return null;
+        }
+        Reality reality = this.realities.get(split.getReality());
+        Zone z = reality.getZone();
+        if (z == null) {
+            return null;
+        }
+
+        NodeInterface ownerStub = split.getOwnerStub();
+        NodeInterface newStub = split.getNewStub();
+        this.ownerCache.invalidate(ownerStub);
+        reality.getShortcuts().update(ownerStub, split.getOwnerZone());
+        String ownerPosition = z.neighborPosition(split.getOwnerZone());
+        String newPosition = z.neighborPosition(split.getNewZone());
+
+        reality.updateNeighbors((neighbors, neighborZones) -> {
+            for (List<NodeInterface> neighborNodes : neighbors.values()) {
+                neighborNodes.remove(ownerStub);
+                neighborNodes.remove(newStub);
+            }
+            neighborZones.remove(ownerStub);
+            neighborZones.remove(newStub);
+
+            if (ownerPosition != null) {
+                neighbors.get(ownerPosition).add(ownerStub);
+                neighborZones.put(ownerStub, split.getOwnerZone());
+            }
+            if (newPosition != null) {
+                neighbors.get(newPosition).add(newStub);
+                neighborZones.put(newStub, split.getNewZone());
+            }
+        });
+        this.logNeighbors(reality);
+
+        return z;
+    }
+
+    /**
+     * Sets new zone's neighbors. Every neighbor is sent one split
+     * notification, all in parallel, and replies with its zone. Neighbors
+     * of both halves are then worked out locally from the replies.
+     *
+     * @param reality - Reality being split
      * @param zone - Zone data to be updated
+     * @param origNode - Remote stub of new node
+     * @param splitDim - Dimension along which zone was split
      */
-    public void splitZoneNeighbors(ZoneData zone, NodeInterface origNode, int splitType) {
+    public void splitZoneNeighbors(Reality reality, ZoneData zone, NodeInterface origNode, int splitDim) {
+        Zone ownerZone = reality.getZone();
+        Zone newZone = zone.getZone();
+        List<NodeInterface> currNeighbors = reality.getAllNeighborsList();
+        Map<NodeInterface, Zone> currNeighborZones = reality.getNeighborZones();
+        SplitData split = new SplitData(reality.getIndex(), this.selfStub, ownerZone, origNode, newZone);
+
+        // Notify all neighbors of current node
+        List<Callable<Zone>> notifications = new ArrayList<>();
+        for (NodeInterface neighbor : currNeighbors) {
+            notifications.add(() -> neighbor.sendSplit(split));
+        }
+
+        // Collect current zone of each neighbor, falling back to last known one
+        Map<NodeInterface, Zone> replies = new HashMap<>();
+        try {
+            List<Future<Zone>> results = this.updateExecutor.invokeAll(notifications);
+            for (int i = 0; i < results.size(); i++) {
+                NodeInterface neighbor = currNeighbors.get(i);
+                Zone neighborZone;
+                try {
+                    neighborZone = results.get(i).get();
+                }
+                catch (ExecutionException e) {
+                    System.out.println("ERROR: " + e.getCause().getMessage());
+                    neighborZone = currNeighborZones.get(neighbor);
+                }
+
+                if (neighborZone != null) {
+                    replies.put(neighbor, neighborZone);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("ERROR: Split notification interrupted");
+            replies.putAll(currNeighborZones);
+        }
+
+        // Set neighbors of new node, with current node as lower neighbor
         Map<String, List<NodeInterface>> newNeighbors = new HashMap<>();
+        for (String position : Zone.positions()) {
+            newNeighbors.put(position, new ArrayList<>());
+        }
+        Map<NodeInterface, Zone> newNeighborZones = new HashMap<>();
+        for (Map.Entry<NodeInterface, Zone> reply : replies.entrySet()) {
+            String position = newZone.neighborPosition(reply.getValue());
+            if (position != null) {
+                newNeighbors.get(position).add(reply.getKey());
+                newNeighborZones.put(reply.getKey(), reply.getValue());
+            }
+        }
+        newNeighbors.get(Zone.position(splitDim, false)).add(this.selfStub);
+        newNeighborZones.put(this.selfStub, ownerZone);
+
+        // Reclassify our neighbors against shrunk zone and add new node as upper neighbor
+        reality.updateNeighbors((neighbors, neighborZones) -> {
+            for (Map.Entry<NodeInterface, Zone> reply : replies.entrySet()) {
+                for (List<NodeInterface> neighborNodes : neighbors.values()) {
+                    neighborNodes.remove(reply.getKey());
+                }
+                neighborZones.remove(reply.getKey());
+
+                String position = ownerZone.neighborPosition(reply.getValue());
+                if (position != null) {
+                    neighbors.get(position).add(reply.getKey());
+                    neighborZones.put(reply.getKey(), reply.getValue());
+                }
+            }
+
+            neighbors.get(Zone.position(splitDim, true)).add(origNode);
+            neighborZones.put(origNode, newZone);
+        });
+        this.logNeighbors(reality);
+
+        zone.setNeighbors(newNeighbors);
+        zone.setNeighborZones(newNeighborZones);
+    }
+
+    /**
+     * Hands zones of all realities to other nodes before leaving the
+     * overlay. (Local interface)
+     *
+     * @return 0 - Success
+     *         1 - Failure in some reality
+     */
+    public int leave() {
+        int retval = 0;
+
+        for (Reality reality : this.realities) {
+            boolean left = false;
+            for (int attempt = 0; attempt < LEAVE_ATTEMPTS && !left; attempt++) {
+                if (attempt > 0) {
+                    try {
+                        Thread.sleep(ThreadLocalRandom.current().nextLong(HEARTBEAT_INTERVAL_MS));
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                left = reality.getZone() == null || this.leaveZone(reality);
+            }
+
+            if (!left) {
+                System.out.println("ERROR: Failed to hand off zone of reality " + reality.getIndex());
+                retval = 1;
+            }
+        }
+
+        return retval;
+    }
+
+    /**
+     * Hands zone of a reality to another node. The zone is merged into the
+     * sibling it was split from if that is still a single zone. Otherwise a
+     * node deeper in the sibling's part of the space merges its own zone
+     * into its sibling and takes over ours.
+     *
+     * @param reality - Reality to leave
+     * @return boolean - true if zone was handed off
+     */
+    private boolean leaveZone(Reality reality) {
+        Zone zone = reality.getZone();
+        if (zone == null) {
+            return true;
+        }
+        Zone sibling = zone.siblingZone();
+
+        // Last node of overlay
+        if (sibling == null) {
+            synchronized (reality.getZoneLock()) {
+                if (zone.equals(reality.getZone())) {
+                    reality.clear();
+                    this.snapshotState();
+                }
+                return reality.getZone() == null;
+            }
+        }
 
-        UpdateData currUpdate = new UpdateData(this.z, this.selfStub);
+        // Target is found without holding the zone lock, vacating a zone
+        // waits on the locks of other nodes
+        NodeInterface target = this.findNeighborIn(reality, sibling, true);
+        if (target == null) {
+            NodeInterface deepest = this.findNeighborIn(reality, sibling, false);
+            if (deepest == null) {
+                return false;
+            }
 
-        // Send update message to all neighbors of current node
-        for (NodeInterface currNodeNeighbor : this.getAllNeighborsList()) {
             try {
-                currNodeNeighbor.sendUpdate(currUpdate);
+                target = deepest.vacateZone(reality.getIndex());
             }
             catch (RemoteException e) {
                 System.out.println("ERROR: " + e.getMessage());
-                e.printStackTrace();
+                return false;
             }
         }
 
-        Zone tmp_zone = zone.getZone();
+        return target != null && this.handOffZone(reality, target);
+    }
 
-        // Vertical split
-        if (splitType == 1) {
-            // Set right neighbors of new node directly as that of current node
-            List<NodeInterface> rightNeighbors = new ArrayList<>();
-            rightNeighbors
-                    .addAll(this.neighbors.getOrDefault("right", (new ArrayList<>())));
-            newNeighbors.put("right", rightNeighbors);
+    /**
+     * Frees this node for taking over a departing node's zone by merging
+     * our zone into its sibling, searching deeper in the sibling's part of
+     * the space if the sibling has been split further.
+     *
+     * @param reality - Index of reality
+     * @return NodeInterface - Node whose zone was freed, null on failure
+     */
+    public NodeInterface vacateZone(int reality) {
+        if (reality < 0 || reality >= REALITIES || this.getZone(reality) == null) {
+            return null;
+        }
+        Reality state = this.realities.get(reality);
+        Zone zone = state.getZone();
+        if (zone == null || state.isLeaving()) {
+            return null;
+        }
+        Zone sibling = zone.siblingZone();
+        if (sibling == null) {
+            return null;
+        }
 
-            // Check top neighbors of current node
-            List<NodeInterface> topNeighbors = new ArrayList<>();
-            List<NodeInterface> tmp = new ArrayList<>(
-                    this.neighbors.getOrDefault("top", (new ArrayList<>())));
-            if (tmp.size() > 0) {
-                for (NodeInterface topNode : this.neighbors.getOrDefault("top", (new ArrayList<>()))) {
-                    try {
-                        if (topNode.isNeighbor(tmp_zone, "bottom")) {
-                            topNeighbors.add(topNode);
-                        }
+        NodeInterface target = this.findNeighborIn(state, sibling, true);
+        if (target != null) {
+            return this.handOffZone(state, target) ? this.selfStub : null;
+        }
 
-                        // Remove topNode if no longer a top neighbor
-                        // Note: Checking for bottom here as the zone passed to isNeigbor should
-                        //       be bottom zone to qualify topNode as a top neighbor
-                        if (!topNode.isNeighbor(this.getZone(), "bottom")) {
-                            tmp.remove(topNode);
-                        }
-                    } catch (RemoteException e) {
-                        System.out.println("ERROR: " + e.getMessage());
-                        e.printStackTrace();
-                    }
-                }
+        NodeInterface deepest = this.findNeighborIn(state, sibling, false);
+        if (deepest == null) {
+            return null;
+        }
+
+        try {
+            return deepest.vacateZone(reality);
+        }
+        catch (RemoteException e) {
+            System.out.println("ERROR: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns neighbor whose zone is exactly given region, or with exact
+     * false the neighbor with the smallest zone inside the region.
+     *
+     * @param reality - Reality state
+     * @param region - Region of coordinate space
+     * @param exact - true to only match zone equal to region
+     * @return NodeInterface
+     */
+    private NodeInterface findNeighborIn(Reality reality, Zone region, boolean exact) {
+        NodeInterface found = null;
+        double minVolume = Double.MAX_VALUE;
+
+        for (Map.Entry<NodeInterface, Zone> entry : reality.getNeighborZones().entrySet()) {
+            Zone neighborZone = entry.getValue();
+            if (exact && neighborZone.equals(region)) {
+                return entry.getKey();
+            }
+            if (!exact && region.contains(neighborZone) && neighborZone.volume() < minVolume) {
+                minVolume = neighborZone.volume();
+                found = entry.getKey();
             }
+        }
 
-            newNeighbors.put("top", topNeighbors);
-            this.neighbors.put("top", tmp);
+        return found;
+    }
 
+    /**
+     * Hands zone, neighbors and data items of a reality to given node and
+     * removes files no longer stored. A snapshot of the zone is taken under
+     * the zone lock, which is released while the target takes it over, so
+     * nodes handing zones to each other cannot wait on each other's locks.
+     * The zone is marked leaving meanwhile, so it is not split, merged
+     * into or inserted into.
+     *
+     * @param reality - Reality state
+     * @param target - Remote stub of node taking over zone
+     * @return boolean - true if zone was taken over
+     */
+    private boolean handOffZone(Reality reality, NodeInterface target) {
+        ZoneData zone = new ZoneData();
+        synchronized (reality.getZoneLock()) {
+            if (reality.getZone() == null || reality.isLeaving()) {
+                return false;
+            }
+            reality.setLeaving(true);
+
+            SpatialIndex dataItems = new SpatialIndex();
+            dataItems.addAll(reality.getDataItems());
+            zone.setReality(reality.getIndex());
+            zone.setZone(reality.getZone());
+            zone.setNeighbors(reality.getNeighbors());
+            zone.setNeighborZones(reality.getNeighborZones());
+            zone.setDataItems(dataItems);
+            zone.setDestStub(this.selfStub);
+        }
 
-            // Check bottom neighbors of current node
-            List<NodeInterface> bottomNeighbors = new ArrayList<>();
-            tmp = new ArrayList<>(this.neighbors.getOrDefault("bottom", (new ArrayList<>())));
+        boolean takenOver;
+        try {
+            takenOver = target.takeoverZone(zone) == 0;
+        }
+        catch (ConnectException | ConnectIOException | NoSuchObjectException e) {
+            System.out.println("ERROR: " + e.getMessage());
+            takenOver = false;
+        }
+        catch (RemoteException e) {
+            // Call may have run, zone is kept unless target owns it now
+            System.out.println("ERROR: " + e.getMessage());
+            takenOver = this.ownsZone(target, zone);
+        }
 
-            if (tmp.size() > 0) {
-                for (NodeInterface botNode : this.neighbors.getOrDefault("bottom", (new ArrayList<>()))) {
-                    try {
-                        if (botNode.isNeighbor(tmp_zone, "top")) {
-                            bottomNeighbors.add(botNode);
-                        }
+        Set<String> handedOff;
+        synchronized (reality.getZoneLock()) {
+            if (!takenOver) {
+                reality.setLeaving(false);
+                return false;
+            }
 
-                        // Remove botNode if no longer a bottom neighbor
-                        if (!botNode.isNeighbor(this.getZone(), "top")) {
-                            tmp.remove(botNode);
-                        }
-                    } catch (RemoteException e) {
-                        System.out.println("ERROR: " + e.getMessage());
-                        e.printStackTrace();
-                    }
-                }
+            handedOff = new HashSet<>(zone.getDataItems().contentHashes());
+            handedOff.addAll(reality.getReplicas().contentHashes());
+            reality.clear();
+            this.snapshotState();
+        }
+
+        // Delete contents handed off and replicas, unless kept for another reality
+        for (String hash : handedOff) {
+            if (!this.isContentStored(hash, null))
+                this.contentStore.delete(hash);
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns if given node owns a zone covering the given one, i.e. it
+     * took over the zone although the call handing it failed.
+     *
+     * @param target - Remote stub of node taking over zone
+     * @param zone - Zone handed off
+     * @return boolean
+     */
+    private boolean ownsZone(NodeInterface target, ZoneData zone) {
+        try {
+            Zone targetZone = target.getZone(zone.getReality());
+            return targetZone != null && targetZone.contains(zone.getZone());
+        }
+        catch (RemoteException e) {
+            System.out.println("ERROR: Outcome of zone handoff unknown: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Takes over zone of a leaving node. The zone is merged into ours, or
+     * becomes ours if we have just vacated our zone. Data items are copied
+     * in bulk before taking our zone lock, and the merge is checked again
+     * under the lock as our zone may have changed meanwhile. Every
+     * neighbor of the resulting zone is sent a single update that replaces
+     * the leaving node with us.
+     *
+     * @param zone - Zone, neighbors and data items of leaving node
+     * @return 0 - Success
+     *         1 - Failure
+     */
+    public int takeoverZone(ZoneData zone) {
+        if (zone.getReality() < 0 || zone.getReality() >= REALITIES) {
+            return 1;
+        }
+        Reality reality = this.realities.get(zone.getReality());
+        NodeInterface departed = zone.getDestStub();
+
+        if (!this.canTakeover(reality, zone)) {
+            return 1;
+        }
+
+        // Copy contents of leaving node not stored here
+        if (!this.fetchContents(zone.getDataItems(), departed)) {
+            this.dropFetched(zone.getDataItems());
+            return 1;
+        }
+
+        synchronized (reality.getZoneLock()) {
+            Zone currZone = reality.getZone();
+            Zone newZone = (currZone == null) ? zone.getZone() : currZone.merge(zone.getZone());
+            if (newZone == null || reality.isLeaving()) {
+                this.dropFetched(zone.getDataItems());
+                return 1;
             }
 
-            newNeighbors.put("bottom", bottomNeighbors);
-            this.neighbors.put("bottom", tmp);
+            this.ownerCache.invalidate(departed);
+            reality.getShortcuts().remove(departed);
+            reality.getDataItems().addAll(zone.getDataItems());
+            reality.setZone(newZone);
 
-            // Set left neighbor of new node
-            List<NodeInterface> leftNeighbors = new ArrayList<>();
-            leftNeighbors.add(selfStub);
-            newNeighbors.put("left", leftNeighbors);
+            // Neighbors of resulting zone come from both neighbor tables
+            Map<NodeInterface, Zone> candidates = new HashMap<>(reality.getNeighborZones());
+            candidates.putAll(zone.getNeighborZones());
+            candidates.remove(this.selfStub);
+            candidates.remove(departed);
 
-            // Remove all right neighbors of current node and add new node as right neighbor
-            List<NodeInterface> currNeighbors = new ArrayList<>();
-            currNeighbors.add(origNode);
-            this.neighbors.put("right", currNeighbors);
+            this.rebuildNeighbors(reality, newZone, candidates);
+            this.snapshotState();
+            this.announceZone(reality, newZone, departed);
+
+            return 0;
         }
-        // Horizontal split
-        else {
-            // Set top neighbors of new node directly as that of current node
-            List<NodeInterface>  topNeighbors = new ArrayList<>();
-            topNeighbors
-                    .addAll(this.neighbors.getOrDefault("top", (new ArrayList<>())));
-            newNeighbors.put("top", topNeighbors);
-
-            // Check right neighbors of current node
-            List<NodeInterface> rightNeighbors = new ArrayList<>();
-            List<NodeInterface> tmp = new ArrayList<>(
-                    this.neighbors.getOrDefault("right", (new ArrayList<>())));
-            if (tmp.size() > 0) {
-                for (NodeInterface rightNode : this.neighbors.getOrDefault("right", (new ArrayList<>()))) {
-                    try {
-                        if (rightNode.isNeighbor(tmp_zone, "left")) {
-                            rightNeighbors.add(rightNode);
-                        }
+    }
 
-                        // Remove rightNode if no longer a right neighbor
-                        // Note: Checking for left here as the zone passed to isNeigbor should
-                        //       be left zone to qualify rightNode as a right neighbor
-                        if (!rightNode.isNeighbor(this.getZone(), "left")) {
-                            tmp.remove(rightNode);
-                        }
-                    } catch (RemoteException e) {
-                        System.out.println("ERROR: " + e.getMessage());
-                        e.printStackTrace();
-                    }
+    /**
+     * Returns if given zone can be taken over, i.e. merged into our zone or
+     * made ours if we have none, while we are not leaving ourselves.
+     *
+     * @param reality - Reality state
+     * @param zone - Zone of leaving node
+     * @return boolean
+     */
+    private boolean canTakeover(Reality reality, ZoneData zone) {
+        Zone currZone = reality.getZone();
+        return !reality.isLeaving() && (currZone == null || currZone.merge(zone.getZone()) != null);
+    }
+
+    /**
+     * Deletes contents downloaded for a takeover that failed, unless they
+     * are referenced here.
+     *
+     * @param items - Data items of leaving node
+     */
+    private void dropFetched(SpatialIndex items) {
+        for (String hash : items.contentHashes()) {
+            if (!this.isContentStored(hash, null))
+                this.contentStore.delete(hash);
+        }
+    }
+
+    /**
+     * Replaces neighbors of a reality by the candidates neighboring given
+     * zone.
+     *
+     * @param reality - Reality state
+     * @param newZone - Zone owned
+     * @param candidates - Zones of possible neighbors
+     */
+    private void rebuildNeighbors(Reality reality, Zone newZone, Map<NodeInterface, Zone> candidates) {
+        reality.updateNeighbors((neighbors, neighborZones) -> {
+            for (List<NodeInterface> neighborNodes : neighbors.values()) {
+                neighborNodes.clear();
+            }
+            neighborZones.clear();
+
+            for (Map.Entry<NodeInterface, Zone> candidate : candidates.entrySet()) {
+                String position = newZone.neighborPosition(candidate.getValue());
+                if (position != null) {
+                    neighbors.get(position).add(candidate.getKey());
+                    neighborZones.put(candidate.getKey(), candidate.getValue());
+                }
+            }
+        });
+        this.pruneReplicas(reality);
+    }
+
+    /**
+     * Sends our zone to all neighbors of a reality in parallel, replacing
+     * given departed node in their tables.
+     *
+     * @param reality - Reality state
+     * @param newZone - Zone owned
+     * @param departed - Remote stub of node replaced by us
+     */
+    private void announceZone(Reality reality, Zone newZone, NodeInterface departed) {
+        UpdateData update = new UpdateData(reality.getIndex(), newZone, this.selfStub);
+        update.setDepartedStub(departed);
+        List<Callable<Integer>> notifications = new ArrayList<>();
+        for (NodeInterface neighbor : reality.getAllNeighborsList()) {
+            notifications.add(() -> neighbor.sendUpdate(update));
+        }
+        try {
+            for (Future<Integer> result : this.updateExecutor.invokeAll(notifications)) {
+                try {
+                    result.get();
+                }
+                catch (ExecutionException e) {
+                    System.out.println("ERROR: " + e.getCause().getMessage());
                 }
             }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("ERROR: Zone notification interrupted");
+        }
+    }
 
-            newNeighbors.put("right", rightNeighbors);
-            this.neighbors.put("right", tmp);
+    /**
+     * Rebuilds zones, data items and replicas saved by a previous run of
+     * this node from its index log, without transferring any files. The
+     * neighbors saved with the last snapshot and their neighbors are asked
+     * for their zones to rebuild the neighbor tables, and each neighbor is
+     * told to replace our previous stub by the current one.
+     *
+     * @return boolean - true if a zone was restored
+     */
+    public boolean restore() {
+        NodeInterface[] previousStub = new NodeInterface[1];
+        List<Map<NodeInterface, Zone>> savedNeighbors = new ArrayList<>();
+        for (int i = 0; i < REALITIES; i++) {
+            savedNeighbors.add(new HashMap<>());
+        }
 
-            // Check left neighbors of current node
-            List<NodeInterface> leftNeighbors = new ArrayList<>();
-            tmp = new ArrayList<>(this.neighbors.getOrDefault("left", (new ArrayList<>())));
-            if (tmp.size() > 0) {
-                for (NodeInterface leftNode : this.neighbors.getOrDefault("left", (new ArrayList<>()))) {
-                    try {
-                        if (leftNode.isNeighbor(tmp_zone, "right")) {
-                            leftNeighbors.add(leftNode);
+        boolean replayed = this.indexLog.replay(new IndexLog.Listener() {
+            public void zone(int reality, Zone zone) {
+                if (reality < REALITIES)
+                    realities.get(reality).setZone(zone);
+            }
 
-                            // Remove leftNode if no longer a left neighbor
-                            if (!leftNode.isNeighbor(this.getZone(), "right")) {
-                                tmp.remove(leftNode);
-                            }
-                        }
-                    } catch (RemoteException e) {
-                        System.out.println("ERROR: " + e.getMessage());
-                        e.printStackTrace();
-                    }
-                }
+            public void add(int reality, int kind, double[] p, String fileName, String hash) {
+                if (reality >= REALITIES)
+                    return;
+
+                Reality state = realities.get(reality);
+                SpatialIndex index = (kind == IndexLog.REPLICA) ? state.getReplicas() : state.getDataItems();
+                index.add(p, fileName, hash);
+            }
+
+            public void remove(int reality, int kind, double[] p, String fileName, String hash) {
+                if (reality >= REALITIES)
+                    return;
+
+                Reality state = realities.get(reality);
+                SpatialIndex index = (kind == IndexLog.REPLICA) ? state.getReplicas() : state.getDataItems();
+                index.remove(p, fileName, hash);
             }
 
-            newNeighbors.put("left", leftNeighbors);
-            this.neighbors.put("left", tmp);
+            public void split(int reality, int dim, double start) {
+                if (reality < REALITIES)
+                    realities.get(reality).getDataItems().splitUpper(dim, start);
+            }
+
+            public void neighbors(int reality, Map<NodeInterface, Zone> neighborZones) {
+                if (reality < REALITIES)
+                    savedNeighbors.set(reality, neighborZones);
+            }
 
-            // Set bottom neighbor of new node
-            List<NodeInterface> bottomNeighbors = new ArrayList<>();
-            bottomNeighbors.add(this.selfStub);
-            newNeighbors.put("bottom", bottomNeighbors);
+            public void self(NodeInterface selfStub) {
+                previousStub[0] = selfStub;
+            }
+        });
 
-            // Remove all top neighbors of current node and add new node as top neighbor
-            List<NodeInterface> currNeighbors = new ArrayList<>();
-            currNeighbors.add(origNode);
-            this.neighbors.put("top", currNeighbors);
+        if (!replayed || this.getZone() == null) {
+            return false;
         }
 
-        // Send update message to all neighbors of new node
-        UpdateData newNodeUpdate = new UpdateData(zone.getZone(), origNode);
-        for (List<NodeInterface> newNodeNeighbors : newNeighbors.values()) {
-            for (NodeInterface newNodeNeighbor : newNodeNeighbors) {
+        for (Reality reality : this.realities) {
+            Zone zone = reality.getZone();
+            if (zone == null)
+                continue;
+
+            Map<NodeInterface, Zone> candidates = new HashMap<>();
+            for (NodeInterface neighbor : savedNeighbors.get(reality.getIndex()).keySet()) {
                 try {
-                    newNodeNeighbor.sendUpdate(newNodeUpdate);
+                    for (LoadInfo load : neighbor.sampleLoad(reality.getIndex())) {
+                        candidates.put(load.getNodeStub(), load.getZone());
+                    }
                 }
                 catch (RemoteException e) {
-                    System.out.println("ERROR: " + e.getMessage());
-                    e.printStackTrace();
+                    // Left or failed since snapshot
                 }
             }
+            candidates.remove(this.selfStub);
+            if (previousStub[0] != null) {
+                candidates.remove(previousStub[0]);
+            }
+
+            this.rebuildNeighbors(reality, zone, candidates);
+            this.announceZone(reality, zone, previousStub[0]);
         }
+        this.snapshotState();
 
-        zone.setNeighbors(newNeighbors);
+        return true;
     }
 
     /**
-     * Splits zone data items and assigns to new node.
-     *
-     * @param zone - ZoneData for new node
-     * @return List<> - List of filenames to remove from current node
+     * Replaces index log by a snapshot of zones, neighbors, data items and
+     * replicas of all realities.
      */
-    public List<String> splitZoneDataItems(ZoneData zone) {
-        Map<String, List<String>> newZoneDataItems = new HashMap<>();
-        List<String> filesToRemove = new ArrayList<>();
-        List<String> keysToRemove = new ArrayList<>();
-
-        for (String key : this.dataItems.keySet()) {
-            String[] keyParts = key.split(",");
-            double x = Double.parseDouble(keyParts[0]);
-            double y = Double.parseDouble(keyParts[1]);
-            if (!this.z.isPointInZone(x, y)) {
-                List<String> tmpFileNames = this.dataItems.get(key);
-                // Add key, filename pair for new zone.
-                newZoneDataItems.put(key, tmpFileNames);
-
-                // Keep track of file names to physically remove from node.
-                filesToRemove.addAll(tmpFileNames);
-
-                // Track key, filename pair to remove as new zone will manage them.
-                keysToRemove.add(key);
+    private void snapshotState() {
+        this.indexLog.snapshot(log -> {
+            log.logSelf(this.selfStub);
+            for (Reality reality : this.realities) {
+                log.logZone(reality.getIndex(), reality.getZone());
+                log.logNeighbors(reality.getIndex(), reality.getNeighborZones());
+                log.logAddAll(reality.getIndex(), IndexLog.DATA, reality.getDataItems());
+                log.logAddAll(reality.getIndex(), IndexLog.REPLICA, reality.getReplicas());
             }
+        });
+    }
+
+    /**
+     * Logs current neighbors of a reality so a restart can find them again,
+     * and drops replicas no longer held for a neighbor.
+     *
+     * @param reality - Reality whose neighbors changed
+     */
+    private void logNeighbors(Reality reality) {
+        this.indexLog.logNeighbors(reality.getIndex(), reality.getNeighborZones());
+        this.checkSnapshot();
+        this.pruneReplicas(reality);
+
+        // Forget ID's of nodes no longer linked to in any reality
+        Set<NodeInterface> linked = new HashSet<>();
+        for (Reality state : this.realities) {
+            linked.addAll(state.getAllNeighborsList());
+            linked.addAll(state.getShortcuts().getShortcuts().keySet());
         }
+        this.peerIDs.keySet().retainAll(linked);
+    }
 
-        for (String key : keysToRemove) {
-            this.dataItems.remove(key);
+    /**
+     * Takes a snapshot once enough changes have been logged.
+     */
+    private void checkSnapshot() {
+        if (this.indexLog.needsSnapshot()) {
+            this.snapshotState();
         }
+    }
+
+    /**
+     * Splits zone data items and assigns to new node.
+     *
+     * @param reality - Reality being split
+     * @param zone - ZoneData for new node
+     * @param splitDim - Dimension along which zone was split
+     * @return List<> - List of content hashes to remove from current node
+     */
+    public List<String> splitZoneDataItems(Reality reality, ZoneData zone, int splitDim) {
+        // Points in upper half along split dimension belong to new zone
+        SpatialIndex newZoneDataItems = reality.getDataItems()
+                .splitUpper(splitDim, zone.getZone().getStart(splitDim));
 
         zone.setDataItems(newZoneDataItems);
 
-        return filesToRemove;
+        // Keep track of contents to physically remove from node.
+        return new ArrayList<>(newZoneDataItems.contentHashes());
     }
 
     /**
      * Returns if given zone is a neighbor along given position.
      *
+     * @param reality - Index of reality
      * @param zone - Zone information
      * @param position - Neighbor position
      * @return boolean
      */
-    public boolean isNeighbor(Zone zone, String position) {
-        boolean retval = false;
-        switch(position) {
-            // Check if given zone is top neighbor
-            case "top":
-                retval = this.z.isTopNeighbor(zone);
-                break;
+    public boolean isNeighbor(int reality, Zone zone, String position) {
+        Zone z = this.getZone(reality);
+        if (z == null) {
+            return false;
+        }
 
-            // Check if given zone is bottom neighbor
-            case "bottom":
-                retval = this.z.isBottomNeighbor(zone);
-                break;
+        // Check if given zone is any neighbor
+        if (position.equals("any")) {
+            return z.isNeighbor(zone);
+        }
 
-            // Check if given zone is left neighbor
-            case "left":
-                retval = this.z.isLeftNeighbor(zone);
-                break;
+        // Check if given zone is a neighbor at given position
+        return z.isNeighbor(zone, position);
+    }
 
-            // Check if given zone is right neighbor
-            case "right":
-                retval = this.z.isRightNeighbor(zone);
-                break;
+    /**
+     * Assigns a zone and its neighbors to new node. The zone is installed
+     * before any content is copied, with the data items whose contents are
+     * stored here already. The other contents are downloaded in the
+     * background and each is confirmed to the node we split from once
+     * verified and indexed, which holds the items until then.
+     *
+     * @param zone - Zone information
+     * @return Set<String> - Hashes of contents stored already
+     */
+    public Set<String> assignZone(ZoneData zone) {
+        Reality reality = this.realities.get(zone.getReality());
+        NodeInterface nodeStub = zone.getDestStub();
+        SpatialIndex items = zone.getDataItems();
 
-            // Check if given zone is any neighbor
-            case "any":
-                retval = (this.z.isTopNeighbor(zone) ||
-                          this.z.isBottomNeighbor(zone) ||
-                          this.z.isRightNeighbor(zone) ||
-                          this.z.isLeftNeighbor(zone));
+        // Contents stored for another reality are not downloaded again
+        Set<String> stored = new HashSet<>();
+        for (String hash : items.contentHashes()) {
+            if (this.contentStore.contains(hash))
+                stored.add(hash);
         }
+        SpatialIndex present = items.withContents(stored);
 
-        return retval;
+        synchronized (reality.getZoneLock()) {
+            reality.setZone(zone.getZone());
+            reality.setNeighbors(zone.getNeighbors(), zone.getNeighborZones());
+            reality.setDataItems(present);
+            this.snapshotState();
+        }
+
+        // Node we split from keeps one replica
+        this.replicate(reality, present, REPLICAS - 1, nodeStub);
+
+        Set<String> missing = new HashSet<>(items.contentHashes());
+        missing.removeAll(stored);
+        this.fetchHandoff(reality, items, missing, nodeStub);
+
+        return stored;
     }
 
     /**
-     * Assigns a zone and its neighbors to new node.
+     * Downloads contents of data items handed to us, up to
+     * TRANSFER_THREADS at a time. Items of each content are indexed once it
+     * is verified and confirmed to the node we split from. Items whose
+     * content cannot be downloaded stay with that node.
      *
-     * @param zone - Zone information
+     * @param reality - Reality state
+     * @param items - Data items handed to us
+     * @param hashes - Contents to download
+     * @param srcStub - Remote stub of node we split from
      */
-    public void assignZone(ZoneData zone) {
-        this.setZone(zone.getZone());
-        this.neighbors = zone.getNeighbors();
-        this.dataItems = zone.getDataItems();
-        NodeInterface nodeStub = zone.getDestStub();
+    private void fetchHandoff(Reality reality, SpatialIndex items, Set<String> hashes, NodeInterface srcStub) {
+        if (hashes.isEmpty()) {
+            return;
+        }
 
-        for (List<String> fileNames : this.dataItems.values()) {
-            for (String fileName : fileNames) {
-                byte[] fileData = null;
+        int srcID;
+        try {
+            srcID = srcStub.getID();
+        }
+        catch (RemoteException e) {
+            System.out.println("ERROR: " + e.getMessage());
+            return;
+        }
+
+        // Items indexed are replicated together once all downloads are done
+        SpatialIndex fetched = new SpatialIndex();
+        AtomicInteger remaining = new AtomicInteger(hashes.size());
+
+        for (String hash : hashes) {
+            String remoteName = DATA_ITEMS_ROOT + "-" + srcID + "/" + hash;
+            this.transferExecutor.execute(() -> {
                 try {
-                    fileData = nodeStub.downloadFile(DATA_ITEMS_ROOT + "-" +
-                            nodeStub.getID() + "/" + fileName);
+                    if (!this.contentStore.fetch(srcStub, remoteName, hash)) {
+                        System.out.println("Failed to download content " + hash);
+                        return;
+                    }
+
+                    SpatialIndex indexed = this.indexHandoff(reality,
+                            items.withContents(Collections.singleton(hash)));
+                    if (indexed.isEmpty()) {
+                        return;
+                    }
+                    fetched.addAll(indexed);
+
+                    srcStub.confirmItems(reality.getIndex(), indexed);
                 }
                 catch (RemoteException e) {
-                    System.out.println("Failed to download file " + fileName);
+                    System.out.println("ERROR: " + e.getMessage());
                 }
-
-                if (fileData != null) {
-                    File file = new File(DATA_ITEMS_ROOT + "-" +
-                            this.getID() + "/" + fileName);
-                    try {
-                        BufferedOutputStream out =
-                                new BufferedOutputStream(
-                                        new FileOutputStream(file));
-                        out.write(fileData, 0, fileData.length);
-                        out.flush();
-                        out.close();
-                    } catch (Exception e) {
-                        System.out.println("Failed to write file " + fileName);
-                        break;
+                finally {
+                    if (remaining.decrementAndGet() == 0) {
+                        this.replicate(reality, fetched, REPLICAS - 1, srcStub);
                     }
                 }
-                else {
-                    System.out.println("Failed to download file" + fileName);
-                }
+            });
+        }
+    }
 
+    /**
+     * Indexes data items handed to us whose content has been stored. Items
+     * no longer in our zone, as it was split again meanwhile, or arriving
+     * while we hand off the zone are skipped and stay with the node that
+     * handed them.
+     *
+     * @param reality - Reality state
+     * @param items - Data items of one content
+     * @return SpatialIndex - Data items indexed
+     */
+    private SpatialIndex indexHandoff(Reality reality, SpatialIndex items) {
+        SpatialIndex indexed = new SpatialIndex();
+        synchronized (this.indexLog) {
+            Zone zone = reality.getZone();
+            for (Map.Entry<Point, Map<String, String>> entry : items.entrySet()) {
+                double[] p = entry.getKey().toArray();
+                if (zone == null || !zone.isPointInZone(p) || reality.isLeaving())
+                    continue;
+
+                for (Map.Entry<String, String> file : entry.getValue().entrySet()) {
+                    reality.getDataItems().add(p, file.getKey(), file.getValue());
+                    indexed.add(p, file.getKey(), file.getValue());
+                }
             }
+            this.indexLog.logAddAll(reality.getIndex(), IndexLog.DATA, indexed);
         }
+        this.checkSnapshot();
+
+        return indexed;
+    }
+
+    /**
+     * Returns size of given file, -1 if it does not exist.
+     *
+     * @param fileName - File to be downloaded
+     * @return long
+     */
+    public long getFileSize(String fileName) {
+        File file = new File(fileName);
+        return file.isFile() ? file.length() : -1;
     }
 
     /**
-     * Returns byte array of given file to caller.
+     * Returns a chunk of given file starting at offset, encoded with the
+     * codec asked for unless it does not compress. Callers download large
+     * files as a sequence of bounded chunks.
      *
      * @param fileName - File to be downloaded
-     * @return byte[]
+     * @param offset - Starting offset of chunk
+     * @param length - Max length of chunk
+     * @param codec - Codec asked for, see Compression
+     * @return byte[] - Chunk encoded by Compression.encodeChunk
      */
-    public byte[] downloadFile(String fileName) {
+    public byte[] downloadFileChunk(String fileName, long offset, int length, int codec) {
         try {
-            File file = new File(fileName);
-            byte[] buffer = new byte[(int) file.length()];
-            BufferedInputStream inp = new BufferedInputStream(new FileInputStream(fileName));
-            inp.read(buffer, 0, buffer.length);
-            inp.close();
-            return buffer;
-        } catch (Exception e) {
+            int chunkLength = Math.min(length, FileTransfer.CHUNK_SIZE);
+            byte[] chunk = null;
+            if (MAPPED_SERVING && this.contentStore != null) {
+                chunk = this.contentStore.readMapped(new File(fileName), offset, chunkLength);
+            }
+            if (chunk == null) {
+                chunk = FileTransfer.readChunk(fileName, offset, chunkLength);
+            }
+
+            return Compression.encodeChunk(chunk, codec);
+        }
+        catch (Exception e) {
             System.out.println("ERROR: " + e.getMessage());
             return null;
         }
     }
 
+    /**
+     * Registers given file with the data server and returns a handle to
+     * fetch it over a socket. Returns null if data server is not running,
+     * in which case callers fall back to chunked RMI downloads.
+     *
+     * @param fileName - File to be downloaded
+     * @param codec - Codec asked for, see Compression
+     * @return TransferHandle
+     */
+    public TransferHandle openTransfer(String fileName, int codec) {
+        if (this.dataServer == null) {
+            return null;
+        }
+
+        return this.dataServer.register(fileName, codec);
+    }
+
+    /**
+     * Starts data server used for file transfers.
+     *
+     * @param host - Address advertised to peers
+     */
+    public void startDataServer(String host) {
+        try {
+            this.dataServer = new DataServer(host);
+            this.dataServer.start();
+        }
+        catch (IOException e) {
+            System.out.println("ERROR: Failed to start data server: " + e.getMessage());
+            this.dataServer = null;
+        }
+    }
+
     /**
      * Display error message from a remote node.
      *
@@ -805,19 +2920,26 @@ public class Node implements NodeInterface {
     }
 
     /**
-     * Returns list of all neighbors.
+     * Returns list of all neighbors in given reality.
      *
+     * @param reality - Reality state
      * @return String - List of neighbors
      */
-    public String neighborsToString() {
+    public String neighborsToString(Reality reality) {
         StringBuilder str;
 
-        if (this.neighbors.isEmpty()) {
+        if (reality.getNeighbors().isEmpty()) {
             str = new StringBuilder("[]");
         }
         else {
             str = new StringBuilder("[ ");
-            for (NodeInterface node : this.getAllNeighborsList()) {
+            for (NodeInterface node : reality.getAllNeighborsList()) {
+                // Avoid waiting on a dead neighbor
+                if (this.suspectedNeighbors.contains(node)) {
+                    str.append("(suspected) ");
+                    continue;
+                }
+
                 try {
                     str.append("peer-")
                        .append(node.getID())
@@ -836,22 +2958,34 @@ public class Node implements NodeInterface {
     }
 
     /**
-     * Returns string representation of data items stored by a node
+     * Returns string representation of data items stored by a node in
+     * given reality
+     *
+     * @param reality - Reality state
+     * @return String
+     */
+    public String dataItemsToString(Reality reality) {
+        return this.dataItemsToString(reality.getDataItems());
+    }
+
+    /**
+     * Returns string representation of given data items.
      *
+     * @param dataItems - Data items indexed by point
      * @return String
      */
-    public String dataItemsToString() {
+    public String dataItemsToString(SpatialIndex dataItems) {
         StringBuilder str;
-        if (this.dataItems.isEmpty()) {
+        if (dataItems.isEmpty()) {
             str = new StringBuilder("[ ]");
         }
         else {
             str = new StringBuilder("[ \n");
-            for (Map.Entry<String, List<String>> dataItemEntry : this.dataItems.entrySet()) {
+            for (Map.Entry<Point, Map<String, String>> dataItemEntry : dataItems.entrySet()) {
                 str.append("(")
                         .append(dataItemEntry.getKey())
                         .append(") -> ");
-                for (String fileName : dataItemEntry.getValue()) {
+                for (String fileName : dataItemEntry.getValue().keySet()) {
                     str.append(fileName)
                             .append(" ");
                 }
@@ -869,15 +3003,42 @@ public class Node implements NodeInterface {
      * @return String - Node information
      */
     public String toString() {
-        String zoneInfo = (z == null) ? "N/A" : this.z.toString();
+        StringBuilder str = new StringBuilder();
+        str.append("+++++++++++++++++++++++++++++++++++++++++++++++++++++\n")
+           .append("Name      : ").append(this.name).append("\n")
+           .append("IPAddr    : ").append(this.ipAddress).append("\n");
+
+        for (Reality reality : this.realities) {
+            String zoneInfo = (reality.getZone() == null) ? "N/A" : reality.getZone().toString();
+
+            if (REALITIES > 1) {
+                str.append("Reality   : ").append(reality.getIndex()).append("\n");
+            }
+            str.append("Zone      : ").append(zoneInfo).append("\n")
+               .append("Neighbors : ").append(this.neighborsToString(reality)).append("\n")
+               .append("Data Items: ").append(this.dataItemsToString(reality)).append("\n");
+
+            if (REPLICAS > 0) {
+                str.append("Replicas  : ").append(this.dataItemsToString(reality.getReplicas())).append("\n");
+            }
+        }
 
-        return "+++++++++++++++++++++++++++++++++++++++++++++++++++++\n" +
-               "Name      : " + this.name + "\n" +
-               "IPAddr    : " + this.ipAddress + "\n" +
-               "Zone      : " + zoneInfo + "\n" +
-               "Neighbors : " + this.neighborsToString() + "\n" +
-               "Data Items: " + this.dataItemsToString() + "\n" +
-               "+++++++++++++++++++++++++++++++++++++++++++++++++++++\n";
+        str.append("+++++++++++++++++++++++++++++++++++++++++++++++++++++\n");
+
+        return str.toString();
     }
 
+
+    /**
+     * Asynchronous request waiting for its reply.
+     */
+    private static class PendingRequest {
+        private final String op;
+        private final long expiresAt;
+
+        private PendingRequest(String op, long expiresAt) {
+            this.op = op;
+            this.expiresAt = expiresAt;
+        }
+    }
 }
@@ -0,0 +1,330 @@
+package can_ds.nodes;
+
+import can_ds.interfaces.NodeInterface;
+import can_ds.utils.RequestRate;
+import can_ds.utils.ShortcutTable;
+import can_ds.utils.SpatialIndex;
+import can_ds.utils.Zone;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * State a node keeps for one reality, i.e. one independent partitioning
+ * of the coordinate space.
+ */
+public class Reality {
+    /**
+     * Index of reality.
+     */
+    private int index;
+
+    /**
+     * Zone owned in this reality, null until joined.
+     */
+    private volatile Zone zone;
+
+    /**
+     * Published neighbor table. Replaced as a whole on every change, so
+     * routing threads read it without locking.
+     */
+    private volatile NeighborTable neighborTable;
+
+    /**
+     * Serializes changes to the neighbor table.
+     */
+    private final Object neighborLock = new Object();
+
+    /**
+     * Serializes changes of the owned zone, i.e. joins splitting it and
+     * leaves handing it off or merging another zone into it.
+     */
+    private final Object zoneLock = new Object();
+
+    /**
+     * Whether the zone is being handed to another node.
+     */
+    private volatile boolean leaving;
+
+    /**
+     * Data items stored for this reality.
+     */
+    private volatile SpatialIndex dataItems;
+
+    /**
+     * Replicas of data items owned by neighbors.
+     */
+    private volatile SpatialIndex replicas;
+
+    /**
+     * Data items handed to a joining node that has not confirmed their
+     * contents yet. They are held among the replicas meanwhile.
+     */
+    private volatile SpatialIndex handoffs;
+
+    /**
+     * Long range links to remote zones.
+     */
+    private final ShortcutTable shortcuts;
+
+    /**
+     * Rate of insert and search requests served for this reality.
+     */
+    private volatile RequestRate requestRate;
+
+    /**
+     * Creates state of a reality not joined yet.
+     *
+     * @param index - Index of reality
+     */
+    public Reality(int index) {
+        this.index = index;
+        this.zone = null;
+        this.neighborTable = new NeighborTable(new HashMap<>(), new HashMap<>());
+        this.dataItems = new SpatialIndex();
+        this.replicas = new SpatialIndex();
+        this.handoffs = new SpatialIndex();
+        this.shortcuts = new ShortcutTable();
+        this.requestRate = new RequestRate();
+    }
+
+    /**
+     * Returns index of reality.
+     *
+     * @return int
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns zone owned in this reality.
+     *
+     * @return Zone
+     */
+    public Zone getZone() {
+        return zone;
+    }
+
+    /**
+     * Sets zone owned in this reality.
+     *
+     * @param zone - Zone information
+     */
+    public void setZone(Zone zone) {
+        this.zone = zone;
+    }
+
+    /**
+     * Returns lock to hold while splitting, handing off or merging the
+     * owned zone.
+     *
+     * @return Object
+     */
+    public Object getZoneLock() {
+        return zoneLock;
+    }
+
+    /**
+     * Returns if the zone is being handed to another node.
+     *
+     * @return boolean
+     */
+    public boolean isLeaving() {
+        return leaving;
+    }
+
+    /**
+     * Sets if the zone is being handed to another node.
+     *
+     * @param leaving - true while handing off zone
+     */
+    public void setLeaving(boolean leaving) {
+        this.leaving = leaving;
+    }
+
+    /**
+     * Drops zone, neighbors, shortcuts, data items and replicas after zone was handed
+     * to another node.
+     */
+    public void clear() {
+        synchronized (neighborLock) {
+            this.zone = null;
+            this.leaving = false;
+            this.neighborTable = new NeighborTable(new HashMap<>(), new HashMap<>());
+            this.dataItems = new SpatialIndex();
+            this.replicas = new SpatialIndex();
+            this.handoffs = new SpatialIndex();
+            this.shortcuts.clear();
+            this.requestRate = new RequestRate();
+        }
+    }
+
+    /**
+     * Returns neighbors by position. The returned map is an immutable
+     * snapshot.
+     *
+     * @return Map<String, List<NodeInterface>>
+     */
+    public Map<String, List<NodeInterface>> getNeighbors() {
+        return neighborTable.neighbors;
+    }
+
+    /**
+     * Returns zones of neighbors. The returned map is an immutable snapshot.
+     *
+     * @return Map<NodeInterface, Zone>
+     */
+    public Map<NodeInterface, Zone> getNeighborZones() {
+        return neighborTable.neighborZones;
+    }
+
+    /**
+     * Returns all neighbors as a list. The returned list is an immutable
+     * snapshot.
+     *
+     * @return List<NodeInterface>
+     */
+    public List<NodeInterface> getAllNeighborsList() {
+        return neighborTable.allNeighbors;
+    }
+
+    /**
+     * Replaces neighbors and their zones.
+     *
+     * @param neighbors - Neighbors of zone by position
+     * @param neighborZones - Zones of neighbors keyed by their stub
+     */
+    public void setNeighbors(Map<String, List<NodeInterface>> neighbors,
+                             Map<NodeInterface, Zone> neighborZones)
+    {
+        synchronized (neighborLock) {
+            this.neighborTable = new NeighborTable(neighbors, neighborZones);
+        }
+    }
+
+    /**
+     * Applies a change to the neighbor table. The change is made on mutable
+     * copies of the current neighbors and zones, which are then published
+     * together. Changes are applied one at a time, readers see either the
+     * old or the new table.
+     *
+     * @param update - Change to apply to neighbors by position and neighbor zones
+     */
+    public void updateNeighbors(BiConsumer<Map<String, List<NodeInterface>>,
+                                           Map<NodeInterface, Zone>> update)
+    {
+        synchronized (neighborLock) {
+            Map<String, List<NodeInterface>> neighbors = new HashMap<>();
+            for (Map.Entry<String, List<NodeInterface>> entry : neighborTable.neighbors.entrySet()) {
+                neighbors.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+            }
+            Map<NodeInterface, Zone> neighborZones = new HashMap<>(neighborTable.neighborZones);
+
+            update.accept(neighbors, neighborZones);
+
+            this.neighborTable = new NeighborTable(neighbors, neighborZones);
+        }
+    }
+
+    /**
+     * Returns long range links to remote zones.
+     *
+     * @return ShortcutTable
+     */
+    public ShortcutTable getShortcuts() {
+        return shortcuts;
+    }
+
+    /**
+     * Returns rate of requests served for this reality.
+     *
+     * @return RequestRate
+     */
+    public RequestRate getRequestRate() {
+        return requestRate;
+    }
+
+    /**
+     * Returns data items stored for this reality.
+     *
+     * @return SpatialIndex
+     */
+    public SpatialIndex getDataItems() {
+        return dataItems;
+    }
+
+    /**
+     * Sets data items stored for this reality.
+     *
+     * @param dataItems - Data items indexed by point
+     */
+    public void setDataItems(SpatialIndex dataItems) {
+        this.dataItems = dataItems;
+    }
+
+    /**
+     * Returns replicas of data items owned by neighbors.
+     *
+     * @return SpatialIndex
+     */
+    public SpatialIndex getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * Returns data items handed to a joining node and not confirmed yet.
+     *
+     * @return SpatialIndex
+     */
+    public SpatialIndex getHandoffs() {
+        return handoffs;
+    }
+
+    /**
+     * Immutable neighbor table of a reality.
+     */
+    private static class NeighborTable {
+        /**
+         * Neighbors by position.
+         */
+        private final Map<String, List<NodeInterface>> neighbors;
+
+        /**
+         * Zones of neighbors.
+         */
+        private final Map<NodeInterface, Zone> neighborZones;
+
+        /**
+         * All neighbors, for routing.
+         */
+        private final List<NodeInterface> allNeighbors;
+
+        /**
+         * Creates table from copies of given neighbors and zones.
+         *
+         * @param neighbors - Neighbors by position
+         * @param neighborZones - Zones of neighbors
+         */
+        private NeighborTable(Map<String, List<NodeInterface>> neighbors,
+                              Map<NodeInterface, Zone> neighborZones)
+        {
+            Map<String, List<NodeInterface>> positions = new HashMap<>();
+            List<NodeInterface> all = new ArrayList<>();
+            for (String position : Zone.positions()) {
+                List<NodeInterface> nodes = new ArrayList<>(
+                        neighbors.getOrDefault(position, Collections.emptyList()));
+                positions.put(position, Collections.unmodifiableList(nodes));
+                all.addAll(nodes);
+            }
+
+            this.neighbors = Collections.unmodifiableMap(positions);
+            this.neighborZones = Collections.unmodifiableMap(new HashMap<>(neighborZones));
+            this.allNeighbors = Collections.unmodifiableList(all);
+        }
+    }
+}
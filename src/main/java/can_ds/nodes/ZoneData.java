@@ -1,15 +1,25 @@
 package can_ds.nodes;
 
 import can_ds.interfaces.NodeInterface;
+import can_ds.utils.SpatialIndex;
+import can_ds.utils.WireFormat;
 import can_ds.utils.Zone;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-public class ZoneData implements Serializable {
+public class ZoneData implements Externalizable {
+
+    /**
+     * Reality new zone belongs to.
+     */
+    private int reality;
 
     /**
      * Zone details of new zone.
@@ -21,10 +31,15 @@ public class ZoneData implements Serializable {
      */
     private Map<String, List<NodeInterface>> neighbors;
 
+    /**
+     * Zones of neighbors of new zone.
+     */
+    private Map<NodeInterface, Zone> neighborZones;
+
     /**
      * List of data items of new zone.
      */
-    private Map<String, List<String>> dataItems;
+    private SpatialIndex dataItems;
 
     /**
      * Remote stub of zone splitter.
@@ -46,14 +61,116 @@ public class ZoneData implements Serializable {
     public ZoneData(Zone zone, Map<String, List<NodeInterface>> neighbors) {
         this.zone = zone;
         this.neighbors = new HashMap<>();
-        this.neighbors.put("left", new ArrayList<>());
-        this.neighbors.put("bottom", new ArrayList<>());
-        this.neighbors.put("right", new ArrayList<>());
-        this.neighbors.put("top", new ArrayList<>());
-        this.dataItems = new HashMap<>();
+        for (String position : Zone.positions()) {
+            this.neighbors.put(position, new ArrayList<>());
+        }
+        this.neighborZones = new HashMap<>();
+        this.dataItems = new SpatialIndex();
         this.destStub = null;
     }
 
+    /**
+     * Writes zone data in compact binary form. Neighbors are written by
+     * position, each followed by its stubs, and data items without their
+     * sorted axes, which the receiver rebuilds.
+     *
+     * @param out - Output
+     * @throws IOException
+     */
+    public void writeExternal(ObjectOutput out) throws IOException {
+        WireFormat.writeVarInt(out, this.reality);
+        WireFormat.writeZone(out, this.zone);
+        out.writeObject(this.destStub);
+
+        out.writeBoolean(this.neighbors != null);
+        if (this.neighbors != null) {
+            WireFormat.writeVarInt(out, this.neighbors.size());
+            for (Map.Entry<String, List<NodeInterface>> entry : this.neighbors.entrySet()) {
+                WireFormat.writeString(out, entry.getKey());
+                WireFormat.writeVarInt(out, entry.getValue().size());
+                for (NodeInterface neighbor : entry.getValue()) {
+                    out.writeObject(neighbor);
+                }
+            }
+        }
+
+        out.writeBoolean(this.neighborZones != null);
+        if (this.neighborZones != null) {
+            WireFormat.writeVarInt(out, this.neighborZones.size());
+            for (Map.Entry<NodeInterface, Zone> entry : this.neighborZones.entrySet()) {
+                out.writeObject(entry.getKey());
+                WireFormat.writeZone(out, entry.getValue());
+            }
+        }
+
+        out.writeBoolean(this.dataItems != null);
+        if (this.dataItems != null) {
+            this.dataItems.writeExternal(out);
+        }
+    }
+
+    /**
+     * Reads zone data written by writeExternal.
+     *
+     * @param in - Input
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        this.reality = WireFormat.readVarInt(in);
+        this.zone = WireFormat.readZone(in);
+        this.destStub = (NodeInterface) in.readObject();
+
+        this.neighbors = null;
+        if (in.readBoolean()) {
+            int positions = WireFormat.readVarInt(in);
+            this.neighbors = new HashMap<>();
+            for (int i = 0; i < positions; i++) {
+                String position = WireFormat.readString(in);
+                int count = WireFormat.readVarInt(in);
+                List<NodeInterface> nodes = new ArrayList<>(count);
+                for (int j = 0; j < count; j++) {
+                    nodes.add((NodeInterface) in.readObject());
+                }
+                this.neighbors.put(position, nodes);
+            }
+        }
+
+        this.neighborZones = null;
+        if (in.readBoolean()) {
+            int count = WireFormat.readVarInt(in);
+            this.neighborZones = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                NodeInterface neighbor = (NodeInterface) in.readObject();
+                this.neighborZones.put(neighbor, WireFormat.readZone(in));
+            }
+        }
+
+        this.dataItems = null;
+        if (in.readBoolean()) {
+            this.dataItems = new SpatialIndex();
+            this.dataItems.readExternal(in);
+        }
+    }
+
+    /**
+     * Returns reality new zone belongs to.
+     *
+     * @return int
+     */
+    public int getReality() {
+        return reality;
+    }
+
+    /**
+     * Sets reality new zone belongs to.
+     *
+     * @param reality - Index of reality
+     */
+    public void setReality(int reality) {
+        this.reality = reality;
+    }
+
     /**
      * Returns zone of new node.
      *
@@ -90,12 +207,30 @@ public class ZoneData implements Serializable {
         this.neighbors = neighbors;
     }
 
+    /**
+     * Returns zones of neighbors.
+     *
+     * @return Map<NodeInterface, Zone>
+     */
+    public Map<NodeInterface, Zone> getNeighborZones() {
+        return neighborZones;
+    }
+
+    /**
+     * Sets zones of neighbors.
+     *
+     * @param neighborZones - Zones of neighbors keyed by their stub
+     */
+    public void setNeighborZones(Map<NodeInterface, Zone> neighborZones) {
+        this.neighborZones = neighborZones;
+    }
+
     /**
      * Returns data items managed.
      *
-     * @return Map<String, List<String>>
+     * @return SpatialIndex
      */
-    public Map<String, List<String>> getDataItems() {
+    public SpatialIndex getDataItems() {
         return dataItems;
     }
 
@@ -104,7 +239,7 @@ public class ZoneData implements Serializable {
      *
      * @param dataItems
      */
-    public void setDataItems(Map<String, List<String>> dataItems) {
+    public void setDataItems(SpatialIndex dataItems) {
         this.dataItems = dataItems;
     }
 
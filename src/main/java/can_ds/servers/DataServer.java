@@ -0,0 +1,259 @@
+package can_ds.servers;
+
+import can_ds.utils.Compression;
+import can_ds.utils.TransferHandle;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Side-channel socket server streaming file payloads of a node. Files are
+ * sent with FileChannel.transferTo so bytes go from page cache to socket
+ * without being copied through the heap, unless the handle was issued
+ * with a codec, in which case the payload is compressed on the way. RMI
+ * calls only hand out TransferHandle's for files registered here.
+ *
+ * Request : token (8 bytes), offset (8 bytes)
+ * Response: remaining raw length (8 bytes, -1 for unknown token), payload
+ *           in codec of handle
+ */
+public class DataServer implements Runnable {
+    /**
+     * Number of concurrent outgoing transfers.
+     */
+    public static final int TRANSFER_THREADS = 4;
+
+    /**
+     * Time after which an unused transfer handle expires.
+     */
+    public static final long HANDLE_TTL_MS = 10 * 60 * 1000;
+
+    /**
+     * Time a client may take to send its request before it is dropped.
+     */
+    public static final int REQUEST_TIMEOUT_MS = 10000;
+
+    /**
+     * Address advertised in transfer handles.
+     */
+    private String host;
+
+    /**
+     * Listening socket.
+     */
+    private ServerSocketChannel serverChannel;
+
+    /**
+     * Workers sending file payloads.
+     */
+    private ExecutorService workers;
+
+    /**
+     * Registered transfers keyed by token.
+     */
+    private Map<Long, Transfer> transfers;
+
+    /**
+     * Source of transfer tokens.
+     */
+    private SecureRandom random;
+
+    /**
+     * Creates a data server listening on an ephemeral port.
+     *
+     * @param host - Address advertised in transfer handles
+     * @throws IOException
+     */
+    public DataServer(String host) throws IOException {
+        this.host = host;
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(0));
+        this.workers = Executors.newFixedThreadPool(TRANSFER_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "data-transfer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.transfers = new ConcurrentHashMap<>();
+        this.random = new SecureRandom();
+    }
+
+    /**
+     * Starts accepting connections in background.
+     */
+    public void start() {
+        Thread acceptThread = new Thread(this, "data-server");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Returns listening port.
+     *
+     * @return int
+     */
+    public int getPort() {
+        return this.serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Registers a file for transfer and returns its handle. The codec
+     * asked for is dropped if the file does not compress.
+     *
+     * @param fileName - File to be transferred
+     * @param codec - Codec asked for by receiver
+     * @return TransferHandle - null if file does not exist
+     */
+    public TransferHandle register(String fileName, int codec) {
+        File file = new File(fileName);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        // Drop handles that were never used
+        long now = System.currentTimeMillis();
+        this.transfers.values().removeIf(t -> now - t.issuedAt > HANDLE_TTL_MS);
+
+        long token = this.random.nextLong();
+        int used = Compression.negotiate(file, codec);
+        this.transfers.put(token, new Transfer(fileName, used, now));
+
+        return new TransferHandle(this.host, this.getPort(), token, file.length(), used);
+    }
+
+    /**
+     * Accept loop.
+     */
+    public void run() {
+        while (this.serverChannel.isOpen()) {
+            try {
+                SocketChannel client = this.serverChannel.accept();
+                this.workers.execute(() -> this.serve(client));
+            }
+            catch (IOException e) {
+                if (this.serverChannel.isOpen()) {
+                    System.out.println("ERROR: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Serves one transfer request.
+     *
+     * @param client - Connected client
+     */
+    private void serve(SocketChannel client) {
+        try (SocketChannel channel = client) {
+            // Idle clients must not hold a worker, reads through the socket's
+            // stream honor the timeout
+            channel.socket().setSoTimeout(REQUEST_TIMEOUT_MS);
+            DataInputStream request = new DataInputStream(channel.socket().getInputStream());
+            long token = request.readLong();
+            long offset = request.readLong();
+
+            ByteBuffer response = ByteBuffer.allocate(8);
+            Transfer transfer = this.transfers.get(token);
+            if (transfer == null) {
+                response.putLong(-1);
+                ((Buffer) response).flip();
+                channel.write(response);
+                return;
+            }
+
+            try (FileChannel file = FileChannel.open(new File(transfer.fileName).toPath())) {
+                long position = Math.min(Math.max(0, offset), file.size());
+                long remaining = file.size() - position;
+
+                response.putLong(remaining);
+                ((Buffer) response).flip();
+                while (response.hasRemaining()) {
+                    channel.write(response);
+                }
+
+                if (transfer.codec == Compression.NONE) {
+                    while (remaining > 0) {
+                        long sent = file.transferTo(position, remaining, channel);
+                        position += sent;
+                        remaining -= sent;
+                    }
+                }
+                else {
+                    this.sendCompressed(file, position, channel, transfer.codec);
+                }
+            }
+
+            // Completed transfers do not need to be resumed
+            this.transfers.remove(token);
+        }
+        catch (IOException e) {
+            System.out.println("ERROR: Data transfer failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends rest of a file compressed with given codec.
+     *
+     * @param file - File being sent
+     * @param position - Offset to send from
+     * @param channel - Connected client
+     * @param codec - Codec to compress with
+     * @throws IOException
+     */
+    private void sendCompressed(FileChannel file, long position, SocketChannel channel, int codec)
+            throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        // Closing finishes the compressed payload and the connection
+        try (OutputStream out = Compression.compress(Channels.newOutputStream(channel), codec)) {
+            int read;
+            while ((read = file.read(buffer, position)) > 0) {
+                out.write(buffer.array(), 0, read);
+                position += read;
+                ((Buffer) buffer).clear();
+            }
+        }
+    }
+
+    /**
+     * Stops accepting connections.
+     */
+    public void stop() {
+        try {
+            this.serverChannel.close();
+        }
+        catch (IOException e) {
+            System.out.println("ERROR: " + e.getMessage());
+        }
+        this.workers.shutdown();
+    }
+
+    /**
+     * File registered for transfer.
+     */
+    private static class Transfer {
+        private final String fileName;
+        private final int codec;
+        private final long issuedAt;
+
+        Transfer(String fileName, int codec, long issuedAt) {
+            this.fileName = fileName;
+            this.codec = codec;
+            this.issuedAt = issuedAt;
+        }
+    }
+}
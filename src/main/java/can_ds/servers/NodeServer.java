@@ -4,22 +4,34 @@ import can_ds.interfaces.DNSNodeInterface;
 import can_ds.interfaces.NodeInterface;
 import can_ds.nodes.DNSNode;
 import can_ds.nodes.Node;
+import can_ds.utils.ContentStore;
+import can_ds.utils.LoadInfo;
 import can_ds.utils.RoutingData;
+import can_ds.utils.TimeoutSocketFactory;
 import can_ds.utils.Utils;
 import can_ds.utils.Zone;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.rmi.server.RMISocketFactory;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
 import java.util.List;
 
 public class NodeServer {
     private static final String PEER_PREFIX = "peer-";
 
+    /**
+     * Time to wait for a connection to a peer.
+     */
+    private static final int RMI_CONNECT_TIMEOUT_MS = 3000;
+
     public static void main(String[] args) {
         if (args.length != 1) {
             System.out.println("Usage: ./node <dns-ip-address>");
@@ -28,6 +40,15 @@ public class NodeServer {
 
         String dnsAddrs = args[0];
 
+        // Bound connects so an unreachable peer frees the calling thread, must
+        // be set before first use of RMI
+        try {
+            RMISocketFactory.setSocketFactory(new TimeoutSocketFactory(RMI_CONNECT_TIMEOUT_MS));
+        }
+        catch (IOException e) {
+            System.out.println("ERROR: " + e.getMessage());
+        }
+
         Registry registry = null;
         DNSNodeInterface dnsNodeStub = null;
 
@@ -49,6 +70,12 @@ public class NodeServer {
 
             node.setSelfStub(nodeStub);
 
+            // Start data plane used for file payloads
+            node.startDataServer(Utils.getPrimaryAddress());
+
+            // Detect failed neighbors so routes avoid them
+            node.startHeartbeat();
+
             String startMsg = "Node ready\n";
             System.out.println(startMsg);
 
@@ -112,24 +139,57 @@ public class NodeServer {
 
                             // Check if first node to join overlay
                             if (bsNodeStubs.isEmpty()) {
-                                node.setZone(0.0, 0.0, Zone.WIDTH_MAX, Zone.HEIGHT_MAX);
+                                for (int reality = 0; reality < Node.REALITIES; reality++) {
+                                    node.setZone(reality, Zone.fullSpace());
+                                }
                             } else {
-                                // Select a random point in (0-10):(0-10) space
-                                double randX = Math.random() * 10;
-                                double randY = Math.random() * 10;
+                                boolean loadAware = cmd.length > 1 && cmd[1].equals("load");
+
+                                // Join each reality at an independent point
+                                for (int reality = 0; reality < Node.REALITIES; reality++) {
+                                    double[] randPoint = Zone.fullSpace().randomPoint();
+                                    NodeInterface finalBSNodeStub = null;
+
+                                    // Split the most loaded zone sampled around bootstrap nodes
+                                    if (loadAware) {
+                                        List<LoadInfo> candidates = new ArrayList<>();
+                                        for (NodeInterface bsNodeStub : bsNodeStubs) {
+                                            try {
+                                                candidates.addAll(bsNodeStub.sampleLoad(reality));
+                                            }
+                                            catch (RemoteException e) {
+                                                System.out.println("ERROR: " + e.getMessage());
+                                            }
+                                        }
 
-                                RoutingData r = new RoutingData(randX, randY, nodeStub, "join");
+                                        LoadInfo target = LoadInfo.mostLoaded(candidates);
+                                        if (target != null) {
+                                            randPoint = target.getZone().randomPoint();
+                                            finalBSNodeStub = target.getNodeStub();
+                                        }
+                                    }
 
-                                NodeInterface finalBSNodeStub = Utils.getNearestNeighbor(randX,
-                                        randY,
-                                        bsNodeStubs);
-                                try {
-                                    finalBSNodeStub.sendMessage(r);
-                                } catch (RemoteException e) {
-                                    System.out.println("ERROR: Failed to send join message");
+                                    RoutingData r = new RoutingData(randPoint, nodeStub, "join");
+                                    r.setReality(reality);
+                                    node.trackRequest(r);
+
+                                    if (finalBSNodeStub == null) {
+                                        finalBSNodeStub = Utils.getNearestNeighbor(reality,
+                                                randPoint, bsNodeStubs);
+                                    }
+                                    try {
+                                        finalBSNodeStub.sendMessage(r);
+                                    } catch (RemoteException e) {
+                                        System.out.println("ERROR: Failed to send join message");
+                                    }
                                 }
                             }
-                            System.out.println("Node has joined the can network");
+                            if (node.isAsyncRouting() && !bsNodeStubs.isEmpty()) {
+                                System.out.println("Join request sent");
+                            }
+                            else {
+                                System.out.println("Node has joined the can network");
+                            }
                         }
                         else {
                             System.out.println("Node already on the network");
@@ -139,21 +199,66 @@ public class NodeServer {
 
                         break;
 
+                    case "restore":
+                        if (node.getZone() == null && peerID == -1) {
+                            if (cmd.length == 2) {
+                                int restoreID;
+                                try { restoreID = Integer.parseInt(cmd[1]); }
+                                catch (Exception e) {
+                                    System.out.println("Peer ID must be an integer");
+                                    break;
+                                }
+
+                                node.setIPAddr(Utils.getAddress());
+                                node.setName(PEER_PREFIX + restoreID);
+                                node.setID(restoreID);
+
+                                // Rebuild zones and data items from files of previous run
+                                if (node.restore()) {
+                                    try {
+                                        dnsNodeStub.reregister(restoreID, nodeStub);
+                                    }
+                                    catch (RemoteException e) {
+                                        System.out.println("ERROR: DNS server seems to be down");
+                                    }
+
+                                    peerID = restoreID;
+                                    peerName = PEER_PREFIX + peerID;
+                                    System.out.println("Node has rejoined the can network");
+                                    System.out.println(node.toString());
+                                }
+                                else {
+                                    System.out.println("No saved zone found for " + PEER_PREFIX + restoreID);
+                                }
+                            }
+                            else {
+                                System.out.println("Usage: restore <peer_id>");
+                            }
+                        }
+                        else {
+                            System.out.println("Node already on the network");
+                        }
+                        break;
+
                     case "insert":
                         if (node.getZone() != null) {
                             if (cmd.length >= 3) {
-                                // Calculate x coordinate for keyword
-                                double x = Utils.calcXFromKeyword(cmd[1]);
-
-                                // Calculate y coordinate for keyword
-                                double y = Utils.calcYFromKeyword(cmd[1]);
+                                // Calculate point for keyword
+                                double[] point = Utils.calcPointFromKeyword(cmd[1]);
 
                                 File file = new File(cmd[2]);
                                 if (file.exists()) {
-                                    // Create routing message
-                                    RoutingData insertData = new RoutingData(x, y, nodeStub, "insert");
-                                    insertData.setFileName(cmd[2]);
+                                    // Owners skip downloading contents they already store
+                                    String hash;
+                                    try {
+                                        hash = ContentStore.hashOf(file);
+                                    }
+                                    catch (IOException e) {
+                                        System.out.println("ERROR: " + e.getMessage());
+                                        break;
+                                    }
 
+                                    NodeInterface startNodeStub = nodeStub;
                                     if (cmd.length == 4) {
                                         int startPeerID;
 
@@ -164,20 +269,23 @@ public class NodeServer {
                                         }
 
                                         // Get remote stub for mentioned peer from DNS
-                                        NodeInterface startNodeStub =
-                                                dnsNodeStub.getNodeStub(startPeerID);
+                                        startNodeStub = dnsNodeStub.getNodeStub(startPeerID);
 
-                                        if (startNodeStub != null) {
-                                            // Starting insert from mentioned peer id
-                                            startNodeStub.sendMessage(insertData);
-                                        }
-                                        else {
+                                        if (startNodeStub == null) {
                                             System.out.println("Peer " + cmd[3] + " does not exist");
+                                            break;
                                         }
                                     }
-                                    else {
-                                        // Starting from self
-                                        nodeStub.sendMessage(insertData);
+
+                                    // Store a copy in every reality
+                                    for (int reality = 0; reality < Node.REALITIES; reality++) {
+                                        RoutingData insertData = new RoutingData(point, nodeStub, "insert");
+                                        insertData.setFileName(cmd[2]);
+                                        insertData.setContentHash(hash);
+                                        insertData.setReality(reality);
+                                        node.trackRequest(insertData);
+
+                                        startNodeStub.sendMessage(insertData);
                                     }
                                 }
                                 else {
@@ -197,18 +305,18 @@ public class NodeServer {
                     case "search":
                         if (node.getZone() != null) {
                             if (cmd.length >= 3) {
-                                // Calculate x coordinate for keyword
-                                double x = Utils.calcXFromKeyword(cmd[1]);
-
-                                // Calculate y coordinate for keyword
-                                double y = Utils.calcYFromKeyword(cmd[1]);
+                                // Calculate point for keyword
+                                double[] point = Utils.calcPointFromKeyword(cmd[1]);
 
                                 // Get only file name if absolute path provided
                                 File tmpFile = new File(cmd[2]);
                                 String onlyFileName = tmpFile.getName();
 
-                                RoutingData searchData = new RoutingData(x, y, nodeStub, "search");
+                                // Search is served by whichever reality reaches the point first
+                                RoutingData searchData = new RoutingData(point, nodeStub, "search");
                                 searchData.setFileName(onlyFileName);
+                                searchData.setReality(RoutingData.ANY_REALITY);
+                                node.trackRequest(searchData);
 
                                 if (cmd.length == 4) {
                                     int startPeerID;
@@ -245,8 +353,125 @@ public class NodeServer {
                         }
                         break;
 
+                    case "range":
+                        if (node.getZone() != null) {
+                            if (cmd.length == 1 + 2 * Zone.DIMENSIONS) {
+                                double[] start = new double[Zone.DIMENSIONS];
+                                double[] size = new double[Zone.DIMENSIONS];
+                                try {
+                                    for (int dim = 0; dim < Zone.DIMENSIONS; dim++) {
+                                        start[dim] = Double.parseDouble(cmd[1 + dim]);
+                                        size[dim] = Double.parseDouble(cmd[1 + Zone.DIMENSIONS + dim]) - start[dim];
+                                    }
+                                }
+                                catch (NumberFormatException e) {
+                                    System.out.println("Coordinates must be numbers");
+                                    break;
+                                }
+
+                                Zone region = new Zone(start, size);
+                                double[] center = region.center();
+                                if (!Zone.fullSpace().isPointInZone(center)) {
+                                    System.out.println("ERROR: Region lies outside coordinate space");
+                                    break;
+                                }
+
+                                // Route to center of region, peers overlapping it stream back their items
+                                RoutingData rangeData = new RoutingData(center, nodeStub, "range");
+                                rangeData.setRegion(region);
+                                rangeData.setReality(RoutingData.ANY_REALITY);
+                                node.trackRequest(rangeData);
+
+                                nodeStub.sendMessage(rangeData);
+                            }
+                            else {
+                                System.out.println("Usage: range <lower corner> <upper corner>, " +
+                                                   Zone.DIMENSIONS + " coordinates each");
+                            }
+                        }
+                        else {
+                            System.out.println("Node is not part of the overlay network yet");
+                        }
+                        break;
+
+                    case "batch":
+                        if (node.getZone() != null) {
+                            if (cmd.length == 3 && (cmd[1].equals("insert") || cmd[1].equals("search"))) {
+                                List<RoutingData> batch = new ArrayList<>();
+
+                                // Each line holds a keyword and a file name
+                                try (BufferedReader listReader = new BufferedReader(new FileReader(cmd[2]))) {
+                                    String line;
+                                    while ((line = listReader.readLine()) != null) {
+                                        String[] entry = line.trim().split("\\s+");
+                                        if (entry.length != 2)
+                                            continue;
+
+                                        double[] point = Utils.calcPointFromKeyword(entry[0]);
+
+                                        if (cmd[1].equals("insert")) {
+                                            if (!new File(entry[1]).exists()) {
+                                                System.out.println("ERROR: File " + entry[1] + " does not exist");
+                                                continue;
+                                            }
+                                            String hash = ContentStore.hashOf(new File(entry[1]));
+
+                                            // Store a copy in every reality
+                                            for (int reality = 0; reality < Node.REALITIES; reality++) {
+                                                RoutingData insertData = new RoutingData(point, nodeStub, "insert");
+                                                insertData.setFileName(entry[1]);
+                                                insertData.setContentHash(hash);
+                                                insertData.setReality(reality);
+                                                node.trackRequest(insertData);
+                                                batch.add(insertData);
+                                            }
+                                        }
+                                        else {
+                                            RoutingData searchData = new RoutingData(point, nodeStub, "search");
+                                            searchData.setFileName(new File(entry[1]).getName());
+                                            searchData.setReality(RoutingData.ANY_REALITY);
+                                            node.trackRequest(searchData);
+                                            batch.add(searchData);
+                                        }
+                                    }
+                                }
+                                catch (IOException e) {
+                                    System.out.println("ERROR: " + e.getMessage());
+                                    break;
+                                }
+
+                                nodeStub.sendBatch(batch);
+                            }
+                            else {
+                                System.out.println("Usage: batch insert <list_file>\n" +
+                                                   "       batch search <list_file>");
+                            }
+                        }
+                        else {
+                            System.out.println("Node is not part of the overlay network yet");
+                        }
+                        break;
+
+                    case "async":
+                        if (cmd.length > 1 && (cmd[1].equals("on") || cmd[1].equals("off"))) {
+                            node.setAsyncRouting(cmd[1].equals("on"));
+                        }
+                        else if (cmd.length > 1) {
+                            System.out.println("Usage: async [on|off]");
+                            break;
+                        }
+                        System.out.println("Asynchronous routing " +
+                                           (node.isAsyncRouting() ? "on" : "off"));
+                        break;
+
+                    case "leave":
                     case "exit":
                         if (peerID > -1) {
+                            // Hand zones and files to neighbors before going away
+                            if (node.leave() == 0) {
+                                System.out.println("Zones handed off to neighbors");
+                            }
+
                             try {
                                 System.out.println("deregistered" + peerName);
                                 dnsNodeStub.deregister(peerID);
@@ -266,6 +491,8 @@ public class NodeServer {
 
             System.out.println("\nSystem shutting down!");
 
+            node.shutdown();
+
             UnicastRemoteObject.unexportObject(node, true);
 
         }
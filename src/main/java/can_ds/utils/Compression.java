@@ -0,0 +1,318 @@
+package can_ds.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Payload compression of file transfers. The receiver asks for a codec,
+ * the sender lowers it to its own setting and drops it for data that
+ * does not compress, e.g. media or archives. Each node sets the strongest
+ * codec it is willing to use with -Dcan.compression=none|fast|best
+ * (default fast).
+ */
+public class Compression {
+    /**
+     * Payload sent as is.
+     */
+    public static final int NONE = 0;
+
+    /**
+     * Deflate at best speed.
+     */
+    public static final int FAST = 1;
+
+    /**
+     * Deflate at best compression.
+     */
+    public static final int BEST = 2;
+
+    /**
+     * Strongest codec this node uses.
+     */
+    public static final int LEVEL = forName(System.getProperty("can.compression", "fast"));
+
+    /**
+     * Payloads smaller than this are not worth compressing.
+     */
+    public static final int MIN_SIZE = 1024;
+
+    /**
+     * Bytes compressed to decide if data compresses.
+     */
+    public static final int SAMPLE_SIZE = 64 * 1024;
+
+    /**
+     * Max ratio of compressed to raw sample for compression to be used.
+     */
+    public static final double MAX_RATIO = 0.9;
+
+    /**
+     * Leading bytes of formats that are compressed already.
+     */
+    private static final byte[][] COMPRESSED_MAGIC = {
+            {(byte) 0x1f, (byte) 0x8b},                                 // gzip
+            {'P', 'K', 3, 4},                                           // zip, jar, office
+            {'B', 'Z', 'h'},                                            // bzip2
+            {(byte) 0xfd, '7', 'z', 'X', 'Z', 0},                       // xz
+            {'7', 'z', (byte) 0xbc, (byte) 0xaf, 0x27, 0x1c},           // 7z
+            {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd},                     // zstd
+            {(byte) 0x89, 'P', 'N', 'G'},                               // png
+            {(byte) 0xff, (byte) 0xd8, (byte) 0xff},                    // jpeg
+            {'G', 'I', 'F', '8'},                                       // gif
+            {'R', 'I', 'F', 'F'},                                       // webp, avi
+            {'I', 'D', '3'},                                            // mp3
+            {'%', 'P', 'D', 'F'},                                       // pdf
+    };
+
+    /**
+     * Returns codec of given name.
+     *
+     * @param name - none, fast or best
+     * @return int
+     */
+    public static int forName(String name) {
+        switch (name.toLowerCase()) {
+            case "none":
+                return NONE;
+            case "best":
+                return BEST;
+            case "fast":
+                return FAST;
+            default:
+                throw new IllegalArgumentException("Unknown compression: " + name);
+        }
+    }
+
+    /**
+     * Returns codec to send given file with, i.e. the codec asked for by
+     * the receiver lowered to our own level, or NONE if the file does not
+     * compress.
+     *
+     * @param file - File to send
+     * @param requested - Codec asked for by receiver
+     * @return int
+     */
+    public static int negotiate(File file, int requested) {
+        int codec = Math.min(requested, LEVEL);
+        if (codec == NONE || file.length() < MIN_SIZE) {
+            return NONE;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            ByteBuffer sample = ByteBuffer.allocate((int) Math.min(SAMPLE_SIZE, channel.size()));
+            while (sample.hasRemaining()) {
+                if (channel.read(sample) < 0)
+                    break;
+            }
+
+            return compresses(sample.array(), sample.position()) ? codec : NONE;
+        }
+        catch (IOException e) {
+            System.out.println("ERROR: " + e.getMessage());
+            return NONE;
+        }
+    }
+
+    /**
+     * Returns if data starting with given bytes is worth compressing. Known
+     * compressed formats are skipped by their leading bytes, other data by
+     * compressing the sample at best speed.
+     *
+     * @param data - Leading bytes of data
+     * @param length - Number of bytes of data to use
+     * @return boolean
+     */
+    public static boolean compresses(byte[] data, int length) {
+        if (length < MIN_SIZE) {
+            return false;
+        }
+
+        for (byte[] magic : COMPRESSED_MAGIC) {
+            if (startsWith(data, length, magic)) {
+                return false;
+            }
+        }
+
+        int sampleLength = Math.min(length, SAMPLE_SIZE);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data, 0, sampleLength);
+            deflater.finish();
+
+            byte[] out = new byte[sampleLength];
+            int compressed = 0;
+            while (!deflater.finished() && compressed < sampleLength * MAX_RATIO) {
+                compressed += deflater.deflate(out);
+            }
+
+            return compressed < sampleLength * MAX_RATIO;
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Returns if data starts with given magic bytes.
+     *
+     * @param data - Data
+     * @param length - Number of bytes of data to use
+     * @param magic - Leading bytes of a format
+     * @return boolean
+     */
+    private static boolean startsWith(byte[] data, int length, byte[] magic) {
+        if (length < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (data[i] != magic[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Encodes a chunk with given codec, or as is if it does not compress.
+     * The first byte of the result is the codec used.
+     *
+     * @param chunk - Raw chunk
+     * @param requested - Codec asked for by receiver
+     * @return byte[]
+     */
+    public static byte[] encodeChunk(byte[] chunk, int requested) {
+        int codec = Math.min(requested, LEVEL);
+        if (codec == NONE || !compresses(chunk, chunk.length)) {
+            byte[] encoded = new byte[chunk.length + 1];
+            encoded[0] = NONE;
+            System.arraycopy(chunk, 0, encoded, 1, chunk.length);
+            return encoded;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(chunk.length / 2 + 1);
+        out.write(codec);
+        try (OutputStream deflated = compress(out, codec)) {
+            deflated.write(chunk);
+        }
+        catch (IOException e) {
+            // Not thrown by in-memory streams
+            throw new IllegalStateException(e);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a chunk encoded by encodeChunk. Decoding stops as soon as the
+     * raw chunk grows past given length, so a small chunk cannot inflate
+     * into an unbounded one.
+     *
+     * @param encoded - Encoded chunk
+     * @param maxLength - Max length of raw chunk
+     * @return byte[] - Raw chunk
+     * @throws IOException - If chunk is corrupt or longer than maxLength
+     */
+    public static byte[] decodeChunk(byte[] encoded, int maxLength) throws IOException {
+        if (encoded.length == 0) {
+            throw new IOException("Empty chunk");
+        }
+
+        if (encoded[0] == NONE) {
+            if (encoded.length - 1 > maxLength) {
+                throw new IOException("Chunk exceeds " + maxLength + " bytes");
+            }
+            byte[] chunk = new byte[encoded.length - 1];
+            System.arraycopy(encoded, 1, chunk, 0, chunk.length);
+            return chunk;
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(encoded, 1, encoded.length - 1);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    (int) Math.min((long) encoded.length * 4, maxLength));
+            byte[] buffer = new byte[64 * 1024];
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated chunk");
+                }
+                if (out.size() + inflated > maxLength) {
+                    throw new IOException("Chunk exceeds " + maxLength + " bytes");
+                }
+                out.write(buffer, 0, inflated);
+            }
+            return out.toByteArray();
+        }
+        catch (DataFormatException e) {
+            throw new IOException("Corrupt chunk: " + e.getMessage());
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Wraps a stream so bytes written are compressed with given codec.
+     * Closing the returned stream finishes the payload and closes given
+     * stream.
+     *
+     * @param out - Stream compressed bytes are written to
+     * @param codec - Codec to use
+     * @return OutputStream
+     */
+    public static OutputStream compress(OutputStream out, int codec) {
+        if (codec == NONE) {
+            return out;
+        }
+
+        Deflater deflater = new Deflater(
+                (codec == BEST) ? Deflater.BEST_COMPRESSION : Deflater.BEST_SPEED);
+        return new DeflaterOutputStream(out, deflater, 64 * 1024) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                }
+                finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Wraps a stream so bytes read are decompressed with given codec.
+     *
+     * @param in - Stream compressed bytes are read from
+     * @param codec - Codec used
+     * @return InputStream
+     */
+    public static InputStream decompress(InputStream in, int codec) {
+        if (codec == NONE) {
+            return in;
+        }
+
+        Inflater inflater = new Inflater();
+        return new InflaterInputStream(in, inflater, 64 * 1024) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                }
+                finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,188 @@
+package can_ds.utils;
+
+import can_ds.interfaces.NodeInterface;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Files of a node stored once per content, named by the SHA-256 hash of
+ * their bytes. Whether a content is still needed is decided by the data
+ * indexes referencing its hash.
+ */
+public class ContentStore {
+    /**
+     * Suffix of downloaded files not verified yet.
+     */
+    public static final String UNVERIFIED_SUFFIX = ".tmp";
+
+    /**
+     * Directory holding contents.
+     */
+    private File dir;
+
+    /**
+     * Locks of contents being downloaded, so each is fetched once.
+     */
+    private Map<String, Object> fetchLocks;
+
+    /**
+     * Mappings of contents served to other nodes in chunks over RMI.
+     */
+    private MappedFileCache mappings;
+
+    /**
+     * Creates store in given directory.
+     *
+     * @param dir - Directory holding contents
+     */
+    public ContentStore(File dir) {
+        this.dir = dir;
+        this.fetchLocks = new ConcurrentHashMap<>();
+        this.mappings = new MappedFileCache();
+    }
+
+    /**
+     * Returns SHA-256 hash of file content as hex string.
+     *
+     * @param file - File to hash
+     * @return String
+     * @throws IOException - If file cannot be read
+     */
+    public static String hashOf(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+
+        return Utils.toHex(digest.digest());
+    }
+
+    /**
+     * Returns file holding given content.
+     *
+     * @param hash - Content hash
+     * @return File
+     */
+    public File getFile(String hash) {
+        return new File(this.dir, hash);
+    }
+
+    /**
+     * Returns if given file is a content of this store, as opposed to a
+     * download in progress or a file outside the store.
+     *
+     * @param file - File
+     * @return boolean
+     */
+    public boolean isContent(File file) {
+        File parent = file.getAbsoluteFile().getParentFile();
+
+        return parent != null && parent.equals(this.dir.getAbsoluteFile())
+                && !file.getName().endsWith(UNVERIFIED_SUFFIX)
+                && !file.getName().endsWith(FileTransfer.PART_SUFFIX);
+    }
+
+    /**
+     * Reads a slice of a stored content from its memory mapping. Contents
+     * never change once stored, so mappings stay valid until deleted.
+     *
+     * @param file - Content file
+     * @param offset - Starting offset
+     * @param length - Max bytes to read
+     * @return byte[] - Slice read, null if file is not a content or too large to map
+     * @throws IOException - If file cannot be mapped
+     */
+    public byte[] readMapped(File file, long offset, int length) throws IOException {
+        if (!this.isContent(file)) {
+            return null;
+        }
+
+        return this.mappings.read(file.getAbsoluteFile(), offset, length);
+    }
+
+    /**
+     * Returns if given content is stored.
+     *
+     * @param hash - Content hash
+     * @return boolean
+     */
+    public boolean contains(String hash) {
+        return this.getFile(hash).exists();
+    }
+
+    /**
+     * Downloads given content from a remote node unless it is stored
+     * already. The download is only kept if its hash matches.
+     *
+     * @param srcStub - Remote stub of node holding content
+     * @param remoteName - File name at remote node
+     * @param hash - Content hash
+     * @return boolean - true if content is stored
+     */
+    public boolean fetch(NodeInterface srcStub, String remoteName, String hash) {
+        Object lock = this.fetchLocks.computeIfAbsent(hash, k -> new Object());
+        try {
+            synchronized (lock) {
+                if (this.contains(hash)) {
+                    return true;
+                }
+
+                File unverified = new File(this.dir, hash + UNVERIFIED_SUFFIX);
+                if (!FileTransfer.fetchFile(srcStub, remoteName, unverified)) {
+                    return false;
+                }
+
+                try {
+                    if (!hash.equals(hashOf(unverified))) {
+                        System.out.println("ERROR: Content of " + remoteName + " does not match its hash");
+                        unverified.delete();
+                        return false;
+                    }
+                    Files.move(unverified.toPath(), this.getFile(hash).toPath(),
+                               StandardCopyOption.REPLACE_EXISTING);
+                }
+                catch (IOException e) {
+                    System.out.println("ERROR: " + e.getMessage());
+                    return false;
+                }
+
+                return true;
+            }
+        }
+        finally {
+            this.fetchLocks.remove(hash, lock);
+        }
+    }
+
+    /**
+     * Removes given content.
+     *
+     * @param hash - Content hash
+     */
+    public void delete(String hash) {
+        File file = this.getFile(hash);
+        this.mappings.invalidate(file.getAbsoluteFile());
+        if (file.exists())
+            file.delete();
+    }
+}
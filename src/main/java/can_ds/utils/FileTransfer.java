@@ -0,0 +1,264 @@
+package can_ds.utils;
+
+import can_ds.interfaces.NodeInterface;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.rmi.RemoteException;
+
+public class FileTransfer {
+    /**
+     * Max bytes requested per chunk.
+     */
+    public static final int CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Max attempts to resume an interrupted transfer.
+     */
+    public static final int MAX_RETRIES = 3;
+
+    /**
+     * Suffix of partially transferred files.
+     */
+    public static final String PART_SUFFIX = ".part";
+
+    /**
+     * Time to wait for a connection to a data server.
+     */
+    public static final int CONNECT_TIMEOUT_MS = 3000;
+
+    /**
+     * Time to wait for data from a data server before giving up on it.
+     */
+    public static final int READ_TIMEOUT_MS = 10000;
+
+    /**
+     * Reads a chunk of a local file starting at given offset.
+     *
+     * @param fileName - File to read
+     * @param offset - Starting offset
+     * @param length - Max bytes to read
+     * @return byte[] - Chunk read, empty at end of file
+     * @throws IOException
+     */
+    public static byte[] readChunk(String fileName, long offset, int length) throws IOException {
+        try (FileChannel channel = FileChannel.open(new File(fileName).toPath())) {
+            long remaining = Math.max(0, channel.size() - offset);
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, remaining));
+
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, offset + buffer.position());
+                if (read < 0)
+                    break;
+            }
+
+            if (buffer.hasRemaining()) {
+                byte[] chunk = new byte[buffer.position()];
+                System.arraycopy(buffer.array(), 0, chunk, 0, chunk.length);
+                return chunk;
+            }
+            return buffer.array();
+        }
+    }
+
+    /**
+     * Downloads a file from a remote node. The node's data server is used
+     * when it hands out a transfer handle, otherwise the file is fetched
+     * chunk by chunk over RMI. Bytes are written to a partial file first so
+     * an interrupted transfer resumes from the last written offset instead
+     * of starting over.
+     *
+     * @param srcStub - Remote stub of node holding the file
+     * @param remoteName - File name at remote node
+     * @param dest - Local destination file
+     * @return boolean - true if file was downloaded completely
+     */
+    public static boolean fetchFile(NodeInterface srcStub, String remoteName, File dest) {
+        File partFile = new File(dest.getPath() + PART_SUFFIX);
+
+        for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
+            try {
+                TransferHandle handle = srcStub.openTransfer(remoteName, Compression.LEVEL);
+                long size = (handle != null) ? handle.getSize() : srcStub.getFileSize(remoteName);
+                if (size < 0) {
+                    System.out.println("ERROR: File " + remoteName + " not found at source");
+                    return false;
+                }
+
+                // Fall back to RMI chunks, resuming where the data plane stopped
+                if (handle == null || !fetchFromDataServer(handle, partFile)) {
+                    fetchChunks(srcStub, remoteName, size, partFile);
+                }
+
+                Files.move(partFile.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                return true;
+            }
+            catch (RemoteException e) {
+                System.out.println("ERROR: Transfer of " + remoteName +
+                                   " interrupted: " + e.getMessage());
+            }
+            catch (IOException e) {
+                System.out.println("ERROR: Transfer of " + remoteName +
+                                   " failed: " + e.getMessage());
+            }
+        }
+
+        // Nothing left to resume from
+        partFile.delete();
+        return false;
+    }
+
+    /**
+     * Downloads a file over the data server socket straight into the
+     * partial file with FileChannel.transferFrom, or through an inflater
+     * if the source compresses the payload. Connecting and every read are
+     * bounded, so a stalled data server makes callers fall back to RMI.
+     *
+     * @param handle - Transfer handle issued by source node
+     * @param partFile - Partial file to write to
+     * @return boolean - true if file was downloaded completely
+     */
+    private static boolean fetchFromDataServer(TransferHandle handle, File partFile) {
+        try (RandomAccessFile out = new RandomAccessFile(partFile, "rw");
+             FileChannel channel = out.getChannel();
+             SocketChannel socket = SocketChannel.open())
+        {
+            socket.socket().connect(new InetSocketAddress(handle.getHost(), handle.getPort()),
+                                    CONNECT_TIMEOUT_MS);
+
+            // Reads through the socket's stream honor the timeout, reads of the channel do not
+            socket.socket().setSoTimeout(READ_TIMEOUT_MS);
+            InputStream in = socket.socket().getInputStream();
+
+            long offset = Math.min(channel.size(), handle.getSize());
+            channel.truncate(offset);
+
+            ByteBuffer request = ByteBuffer.allocate(16);
+            request.putLong(handle.getToken()).putLong(offset);
+            ((Buffer) request).flip();
+            while (request.hasRemaining()) {
+                socket.write(request);
+            }
+
+            // Raw bytes never exceed the rest of the file the handle was opened for
+            long remaining = new DataInputStream(in).readLong();
+            if (remaining < 0 || remaining > handle.getSize() - offset) {
+                return false;
+            }
+
+            if (handle.getCodec() == Compression.NONE) {
+                ReadableByteChannel payload = Channels.newChannel(in);
+                while (remaining > 0) {
+                    long received = channel.transferFrom(payload, offset, remaining);
+                    if (received <= 0) {
+                        throw new IOException("Connection closed at offset " + offset);
+                    }
+                    offset += received;
+                    remaining -= received;
+                }
+            }
+            else {
+                receiveCompressed(in, channel, offset, remaining, handle.getCodec());
+            }
+            channel.force(false);
+
+            return true;
+        }
+        catch (IOException e) {
+            System.out.println("ERROR: Data server transfer failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Inflates a compressed payload from the data server into the partial
+     * file. Bytes are written as they arrive, so an interrupted transfer
+     * resumes from the last raw offset written.
+     *
+     * @param payload - Payload read from data server
+     * @param channel - Partial file
+     * @param offset - Raw offset payload starts at
+     * @param remaining - Raw bytes expected
+     * @param codec - Codec of payload
+     * @throws IOException
+     */
+    private static void receiveCompressed(InputStream payload,
+                                          FileChannel channel,
+                                          long offset,
+                                          long remaining,
+                                          int codec) throws IOException
+    {
+        byte[] buffer = new byte[64 * 1024];
+
+        // Reads stop at the raw length announced, closing frees the inflater
+        try (InputStream in = Compression.decompress(payload, codec)) {
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new IOException("Connection closed at offset " + offset);
+                }
+
+                ByteBuffer inflated = ByteBuffer.wrap(buffer, 0, read);
+                while (inflated.hasRemaining()) {
+                    offset += channel.write(inflated, offset);
+                }
+                remaining -= read;
+            }
+        }
+    }
+
+    /**
+     * Downloads a file over RMI in bounded chunks into the partial file.
+     * Each chunk is compressed on its own when the source finds it worth it.
+     *
+     * @param srcStub - Remote stub of node holding the file
+     * @param remoteName - File name at remote node
+     * @param size - Size of file
+     * @param partFile - Partial file to write to
+     * @throws IOException
+     */
+    private static void fetchChunks(NodeInterface srcStub,
+                                    String remoteName,
+                                    long size,
+                                    File partFile) throws IOException
+    {
+        try (RandomAccessFile out = new RandomAccessFile(partFile, "rw");
+             FileChannel channel = out.getChannel())
+        {
+            // Resume from whatever was written by an earlier attempt
+            long offset = Math.min(channel.size(), size);
+            channel.truncate(offset);
+
+            while (offset < size) {
+                int length = (int) Math.min(CHUNK_SIZE, size - offset);
+                byte[] encoded = srcStub.downloadFileChunk(remoteName, offset, length, Compression.LEVEL);
+                if (encoded == null) {
+                    throw new IOException("Short read at offset " + offset);
+                }
+                byte[] chunk = Compression.decodeChunk(encoded, length);
+                if (chunk.length == 0) {
+                    throw new IOException("Short read at offset " + offset);
+                }
+
+                ByteBuffer buffer = ByteBuffer.wrap(chunk);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, offset + buffer.position());
+                }
+                offset += chunk.length;
+            }
+            channel.force(false);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package can_ds.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Maps keywords uniformly over the coordinate space. Each coordinate is
+ * taken from 53 bits of a SHA-256 digest of the keyword, so points carry
+ * full double precision and are spread evenly whatever the keywords.
+ */
+public class HashKeyMapper implements KeyMapper {
+
+    /**
+     * Bytes of digest consumed per coordinate.
+     */
+    private static final int BYTES_PER_DIM = 8;
+
+    /**
+     * Calculates point in coordinate space from given keyword. Digests are
+     * chained with a counter when more coordinates are needed than a
+     * single digest holds.
+     *
+     * @param keyword - Keyword for file
+     * @return double[]
+     */
+    public double[] toPoint(String keyword) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+
+        byte[] input = keyword.getBytes(StandardCharsets.UTF_8);
+        double[] point = new double[Zone.DIMENSIONS];
+        byte[] hash = null;
+        int pos = 0;
+        int counter = 0;
+
+        for (int dim = 0; dim < point.length; dim++) {
+            if (hash == null || pos + BYTES_PER_DIM > hash.length) {
+                digest.update(input);
+                digest.update((byte) counter++);
+                hash = digest.digest();
+                pos = 0;
+            }
+
+            long bits = 0;
+            for (int i = 0; i < BYTES_PER_DIM; i++) {
+                bits = (bits << 8) | (hash[pos++] & 0xff);
+            }
+
+            // Top 53 bits as a fraction in [0, 1), kept below SPACE_MAX after scaling
+            point[dim] = Math.min((bits >>> 11) * 0x1.0p-53 * Zone.SPACE_MAX,
+                                  Math.nextDown(Zone.SPACE_MAX));
+        }
+
+        return point;
+    }
+}
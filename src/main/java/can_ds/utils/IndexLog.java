@@ -0,0 +1,685 @@
+package can_ds.utils;
+
+import can_ds.interfaces.NodeInterface;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of the zone and data index changes of a node, with
+ * snapshots of its full state. A restarted node replays the snapshot and
+ * then the log. Every record is framed with its length and a CRC32, so a
+ * record torn by a crash ends the replay and is cut from the log.
+ *
+ * Snapshot and log start with the generation they belong to. Each
+ * snapshot starts a new generation, so a log left over by a crash between
+ * moving a snapshot into place and starting the new log is skipped. Every
+ * append is synced to disk before it returns, except neighbor records,
+ * and logAddAll syncs once after its last record.
+ *
+ * Callers changing state and logging the change hold the log's lock
+ * across both, so a snapshot never misses a change it truncates.
+ */
+public class IndexLog {
+    /**
+     * Log file name.
+     */
+    public static final String LOG_FILE = "index.log";
+
+    /**
+     * Snapshot file name.
+     */
+    public static final String SNAPSHOT_FILE = "index.snap";
+
+    /**
+     * Records appended before the log asks for a snapshot.
+     */
+    public static final int SNAPSHOT_RECORDS = 1000;
+
+    /**
+     * Index kind of owned data items.
+     */
+    public static final int DATA = 0;
+
+    /**
+     * Index kind of replicas.
+     */
+    public static final int REPLICA = 1;
+
+    private static final byte ZONE = 1;
+    private static final byte ADD = 2;
+    private static final byte SPLIT = 3;
+    private static final byte NEIGHBORS = 4;
+    private static final byte SELF = 5;
+    private static final byte GENERATION = 6;
+    private static final byte REMOVE = 7;
+
+    /**
+     * Receives records during replay.
+     */
+    public interface Listener {
+        void zone(int reality, Zone zone);
+        void add(int reality, int kind, double[] p, String fileName, String hash);
+        void remove(int reality, int kind, double[] p, String fileName, String hash);
+        void split(int reality, int dim, double start);
+        void neighbors(int reality, Map<NodeInterface, Zone> neighborZones);
+        void self(NodeInterface selfStub);
+    }
+
+    /**
+     * Directory holding log and snapshot.
+     */
+    private File dir;
+
+    /**
+     * Stream records are appended to, opened on first append.
+     */
+    private DataOutputStream out;
+
+    /**
+     * File out writes to, synced after appends.
+     */
+    private FileOutputStream file;
+
+    /**
+     * Appends whose sync is deferred to the end of a batch when above 0.
+     */
+    private int batchDepth;
+
+    /**
+     * Generation of current snapshot and log.
+     */
+    private long generation;
+
+    /**
+     * Records appended since last snapshot.
+     */
+    private int records;
+
+    /**
+     * Creates log in given directory, continuing generation of its
+     * snapshot if there is one.
+     *
+     * @param dir - Directory holding log and snapshot
+     */
+    public IndexLog(File dir) {
+        this.dir = dir;
+        this.generation = readGeneration(new File(dir, SNAPSHOT_FILE));
+    }
+
+    /**
+     * Logs zone of a reality, null once it was handed off.
+     *
+     * @param reality - Index of reality
+     * @param zone - Zone owned, may be null
+     */
+    public synchronized void logZone(int reality, Zone zone) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+        try {
+            record.writeByte(ZONE);
+            record.writeInt(reality);
+            record.writeBoolean(zone != null);
+            if (zone != null) {
+                record.writeInt(zone.getDimensions());
+                for (int dim = 0; dim < zone.getDimensions(); dim++) {
+                    record.writeDouble(zone.getStart(dim));
+                    record.writeDouble(zone.getSize(dim));
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.append(bytes.toByteArray());
+    }
+
+    /**
+     * Logs file name with given content added at a point.
+     *
+     * @param reality - Index of reality
+     * @param kind - DATA or REPLICA
+     * @param p - Coordinates of point
+     * @param fileName - File name
+     * @param hash - Content hash
+     */
+    public synchronized void logAdd(int reality, int kind, double[] p, String fileName, String hash) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+        try {
+            record.writeByte(ADD);
+            record.writeInt(reality);
+            record.writeByte(kind);
+            record.writeInt(p.length);
+            for (double coord : p) {
+                record.writeDouble(coord);
+            }
+            record.writeUTF(fileName);
+            record.writeUTF(hash);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.append(bytes.toByteArray());
+    }
+
+    /**
+     * Logs all file names of given index.
+     *
+     * @param reality - Index of reality
+     * @param kind - DATA or REPLICA
+     * @param items - Data items
+     */
+    public synchronized void logAddAll(int reality, int kind, SpatialIndex items) {
+        this.batchDepth++;
+        try {
+            for (Map.Entry<Point, Map<String, String>> entry : items.entrySet()) {
+                for (Map.Entry<String, String> file : entry.getValue().entrySet()) {
+                    this.logAdd(reality, kind, entry.getKey().toArray(), file.getKey(), file.getValue());
+                }
+            }
+        }
+        finally {
+            this.batchDepth--;
+        }
+        this.sync();
+    }
+
+    /**
+     * Logs removal of file name with given content from a point.
+     *
+     * @param reality - Index of reality
+     * @param kind - DATA or REPLICA
+     * @param p - Coordinates of point
+     * @param fileName - File name
+     * @param hash - Content hash
+     */
+    public synchronized void logRemove(int reality, int kind, double[] p, String fileName, String hash) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+        try {
+            record.writeByte(REMOVE);
+            record.writeInt(reality);
+            record.writeByte(kind);
+            record.writeInt(p.length);
+            for (double coord : p) {
+                record.writeDouble(coord);
+            }
+            record.writeUTF(fileName);
+            record.writeUTF(hash);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.append(bytes.toByteArray());
+    }
+
+    /**
+     * Logs removal of all file names of given index.
+     *
+     * @param reality - Index of reality
+     * @param kind - DATA or REPLICA
+     * @param items - Data items removed
+     */
+    public synchronized void logRemoveAll(int reality, int kind, SpatialIndex items) {
+        this.batchDepth++;
+        try {
+            for (Map.Entry<Point, Map<String, String>> entry : items.entrySet()) {
+                for (Map.Entry<String, String> file : entry.getValue().entrySet()) {
+                    this.logRemove(reality, kind, entry.getKey().toArray(), file.getKey(), file.getValue());
+                }
+            }
+        }
+        finally {
+            this.batchDepth--;
+        }
+        this.sync();
+    }
+
+    /**
+     * Logs removal of data items in upper half of a split zone.
+     *
+     * @param reality - Index of reality
+     * @param dim - Dimension zone was split along
+     * @param start - Start of upper half along dimension
+     */
+    public synchronized void logSplit(int reality, int dim, double start) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+        try {
+            record.writeByte(SPLIT);
+            record.writeInt(reality);
+            record.writeInt(dim);
+            record.writeDouble(start);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.append(bytes.toByteArray());
+    }
+
+    /**
+     * Logs current neighbors of a reality. Neighbors are rediscovered
+     * through the last ones logged after a restart. The record is not
+     * synced on its own: neighbor tables are rebuilt from live nodes on
+     * restart, so a lost record only costs a staler starting point.
+     *
+     * @param reality - Index of reality
+     * @param neighborZones - Zones of neighbors
+     */
+    public synchronized void logNeighbors(int reality, Map<NodeInterface, Zone> neighborZones) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(NEIGHBORS);
+        try (ObjectOutputStream record = new ObjectOutputStream(bytes)) {
+            record.writeInt(reality);
+            record.writeObject(new HashMap<>(neighborZones));
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.append(bytes.toByteArray(), false);
+    }
+
+    /**
+     * Logs remote stub of node, so neighbors can be told to replace it.
+     *
+     * @param selfStub - Remote stub of node
+     */
+    public synchronized void logSelf(NodeInterface selfStub) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(SELF);
+        try (ObjectOutputStream record = new ObjectOutputStream(bytes)) {
+            record.writeObject(selfStub);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.append(bytes.toByteArray());
+    }
+
+    /**
+     * Returns if enough records were appended to replace them by a snapshot.
+     *
+     * @return boolean
+     */
+    public synchronized boolean needsSnapshot() {
+        return this.records >= SNAPSHOT_RECORDS;
+    }
+
+    /**
+     * Writes a snapshot of the next generation and starts an empty log of
+     * it. The writer logs the full state, its records go to a new snapshot
+     * file that replaces the old one once synced to disk.
+     *
+     * @param writer - Logs full state of node
+     */
+    public synchronized void snapshot(Consumer<IndexLog> writer) {
+        this.dir.mkdirs();
+        File tmpFile = new File(this.dir, SNAPSHOT_FILE + ".tmp");
+        long next = this.generation + 1;
+        this.close();
+
+        this.batchDepth++;
+        try (FileOutputStream snapshot = new FileOutputStream(tmpFile)) {
+            this.out = new DataOutputStream(new BufferedOutputStream(snapshot));
+            writeRecord(this.out, generationRecord(next));
+            writer.accept(this);
+            this.out.flush();
+            snapshot.getFD().sync();
+        }
+        catch (IOException | UncheckedIOException e) {
+            System.out.println("ERROR: Snapshot failed: " + e.getMessage());
+            return;
+        }
+        finally {
+            this.batchDepth--;
+            this.out = null;
+        }
+
+        try {
+            Files.move(tmpFile.toPath(), new File(this.dir, SNAPSHOT_FILE).toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            System.out.println("ERROR: Snapshot failed: " + e.getMessage());
+            return;
+        }
+
+        // Records of the old log are in the snapshot, it is skipped from now on
+        // even if starting the new log below fails
+        this.generation = next;
+        this.records = 0;
+        try {
+            this.openLog(false);
+        }
+        catch (IOException e) {
+            System.out.println("ERROR: Failed to start new log: " + e.getMessage());
+            this.close();
+        }
+    }
+
+    /**
+     * Replays snapshot and log. A torn record at the end of the log is cut
+     * off so appends continue after the last complete record.
+     *
+     * @param listener - Receives records in order
+     * @return boolean - false if no state was saved
+     */
+    public synchronized boolean replay(Listener listener) {
+        this.close();
+        File snapFile = new File(this.dir, SNAPSHOT_FILE);
+        File logFile = new File(this.dir, LOG_FILE);
+        if (!snapFile.exists() && !logFile.exists()) {
+            return false;
+        }
+
+        try {
+            this.generation = readGeneration(snapFile);
+            replayFile(snapFile, listener);
+
+            // Log of an older generation is covered by the snapshot
+            long valid = 0;
+            if (readGeneration(logFile) == this.generation) {
+                valid = replayFile(logFile, listener);
+            }
+            if (logFile.exists() && valid < logFile.length()) {
+                try (RandomAccessFile log = new RandomAccessFile(logFile, "rw")) {
+                    log.setLength(valid);
+                }
+            }
+        }
+        catch (IOException e) {
+            System.out.println("ERROR: Replay failed: " + e.getMessage());
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Closes log stream.
+     */
+    public synchronized void close() {
+        if (this.out != null) {
+            try {
+                this.out.close();
+            }
+            catch (IOException e) {
+                System.out.println("ERROR: " + e.getMessage());
+            }
+            this.out = null;
+            this.file = null;
+        }
+    }
+
+    /**
+     * Opens log for appending. A missing log, or one of an older
+     * generation, is started anew with the current generation.
+     *
+     * @param append - Keep records of log if it is of current generation
+     * @throws IOException - If log cannot be opened
+     */
+    private void openLog(boolean append) throws IOException {
+        this.close();
+        this.dir.mkdirs();
+        File logFile = new File(this.dir, LOG_FILE);
+        boolean keep = append && logFile.length() > 0 && readGeneration(logFile) == this.generation;
+
+        this.file = new FileOutputStream(logFile, keep);
+        this.out = new DataOutputStream(new BufferedOutputStream(this.file));
+        if (!keep) {
+            writeRecord(this.out, generationRecord(this.generation));
+            this.out.flush();
+            this.file.getFD().sync();
+        }
+    }
+
+    /**
+     * Appends a framed record and syncs it to disk, unless a batch defers
+     * the sync.
+     *
+     * @param payload - Encoded record
+     */
+    private void append(byte[] payload) {
+        this.append(payload, true);
+    }
+
+    /**
+     * Appends a framed record. A record not synced here reaches the disk
+     * with the next synced one.
+     *
+     * @param payload - Encoded record
+     * @param durable - Sync record to disk before returning
+     */
+    private void append(byte[] payload, boolean durable) {
+        try {
+            if (this.out == null) {
+                this.openLog(true);
+            }
+            writeRecord(this.out, payload);
+            this.records++;
+            if (durable) {
+                this.sync();
+            }
+        }
+        catch (IOException e) {
+            System.out.println("ERROR: Failed to log index change: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Flushes appended records and syncs the log to disk, unless a batch
+     * is in progress.
+     */
+    private void sync() {
+        if (this.batchDepth > 0 || this.out == null) {
+            return;
+        }
+
+        try {
+            this.out.flush();
+            if (this.file != null) {
+                this.file.getFD().sync();
+            }
+        }
+        catch (IOException e) {
+            System.out.println("ERROR: Failed to sync index log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes a record framed with its length and CRC32.
+     *
+     * @param out - Stream to write to
+     * @param payload - Encoded record
+     * @throws IOException
+     */
+    private static void writeRecord(DataOutputStream out, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+    }
+
+    /**
+     * Encodes the record starting a snapshot or log of given generation.
+     *
+     * @param generation - Generation
+     * @return byte[]
+     */
+    private static byte[] generationRecord(long generation) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+        try {
+            record.writeByte(GENERATION);
+            record.writeLong(generation);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns generation a snapshot or log belongs to, 0 if it is missing
+     * or does not start with a generation.
+     *
+     * @param file - Snapshot or log file
+     * @return long
+     */
+    private static long readGeneration(File file) {
+        if (!file.exists()) {
+            return 0;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if (length != 9) {
+                return 0;
+            }
+
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum || payload[0] != GENERATION) {
+                return 0;
+            }
+
+            return new DataInputStream(new ByteArrayInputStream(payload, 1, 8)).readLong();
+        }
+        catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Replays records of a file up to its first incomplete or corrupt one.
+     *
+     * @param file - Snapshot or log file
+     * @param listener - Receives records
+     * @return long - Length of valid prefix of file
+     * @throws IOException - If file cannot be read
+     */
+    private static long replayFile(File file, Listener listener) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                }
+                catch (EOFException e) {
+                    break;
+                }
+
+                byte[] payload = new byte[Math.max(0, length)];
+                int checksum;
+                try {
+                    checksum = in.readInt();
+                    in.readFully(payload);
+                }
+                catch (EOFException e) {
+                    break;
+                }
+
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if (length <= 0 || (int) crc.getValue() != checksum) {
+                    break;
+                }
+
+                apply(payload, listener);
+                valid += 8 + length;
+            }
+        }
+
+        return valid;
+    }
+
+    /**
+     * Decodes a record and passes it to listener.
+     *
+     * @param payload - Encoded record
+     * @param listener - Receives record
+     * @throws IOException - If record cannot be decoded
+     */
+    @SuppressWarnings("unchecked")
+    private static void apply(byte[] payload, Listener listener) throws IOException {
+        byte type = payload[0];
+
+        // Neighbor and self records carry an object stream after their type
+        if (type == NEIGHBORS || type == SELF) {
+            try (ObjectInputStream in = new ObjectInputStream(
+                    new ByteArrayInputStream(payload, 1, payload.length - 1))) {
+                if (type == NEIGHBORS) {
+                    int reality = in.readInt();
+                    listener.neighbors(reality, (Map<NodeInterface, Zone>) in.readObject());
+                }
+                else {
+                    listener.self((NodeInterface) in.readObject());
+                }
+            }
+            catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+            return;
+        }
+
+        if (type == GENERATION) {
+            // Checked before replaying file
+            return;
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload, 1, payload.length - 1));
+        int reality = in.readInt();
+
+        switch (type) {
+            case ZONE:
+                Zone zone = null;
+                if (in.readBoolean()) {
+                    int dims = in.readInt();
+                    double[] start = new double[dims];
+                    double[] size = new double[dims];
+                    for (int dim = 0; dim < dims; dim++) {
+                        start[dim] = in.readDouble();
+                        size[dim] = in.readDouble();
+                    }
+                    zone = new Zone(start, size);
+                }
+                listener.zone(reality, zone);
+                break;
+
+            case ADD:
+            case REMOVE:
+                int kind = in.readByte();
+                double[] p = new double[in.readInt()];
+                for (int dim = 0; dim < p.length; dim++) {
+                    p[dim] = in.readDouble();
+                }
+                if (type == ADD) {
+                    listener.add(reality, kind, p, in.readUTF(), in.readUTF());
+                }
+                else {
+                    listener.remove(reality, kind, p, in.readUTF(), in.readUTF());
+                }
+                break;
+
+            case SPLIT:
+                listener.split(reality, in.readInt(), in.readDouble());
+                break;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package can_ds.utils;
+
+import can_ds.nodes.ZoneData;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Reports how a keyword corpus is spread over the zones of an overlay.
+ * Zones are built the way joins build them, by splitting the zone holding a
+ * random point, and each keyword of the corpus is counted against the zone
+ * holding its point.
+ *
+ * Usage: java can_ds.utils.KeyLoadReport <corpus_file> <zones> [hash|sum] [seed]
+ */
+public class KeyLoadReport {
+
+    /**
+     * Number of most loaded zones listed.
+     */
+    private static final int TOP_ZONES = 5;
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: KeyLoadReport <corpus_file> <zones> [hash|sum] [seed]");
+            return;
+        }
+
+        List<String> keywords = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(args[0]))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty())
+                    keywords.add(line);
+            }
+        }
+        catch (IOException e) {
+            System.out.println("ERROR: " + e.getMessage());
+            return;
+        }
+
+        int zoneCount = Integer.parseInt(args[1]);
+        KeyMapper mapper = (args.length > 2) ? KeyMapper.forName(args[2]) : Utils.KEY_MAPPER;
+        Random random = (args.length > 3) ? new Random(Long.parseLong(args[3])) : new Random();
+
+        List<Zone> zones = buildZones(zoneCount, random);
+        int[] load = new int[zones.size()];
+        Set<Point> distinctPoints = new HashSet<>();
+
+        for (String keyword : keywords) {
+            double[] p = mapper.toPoint(keyword);
+            distinctPoints.add(new Point(p));
+
+            for (int i = 0; i < zones.size(); i++) {
+                if (zones.get(i).isPointInZone(p)) {
+                    load[i]++;
+                    break;
+                }
+            }
+        }
+
+        printReport(keywords.size(), distinctPoints.size(), zones, load);
+    }
+
+    /**
+     * Builds given number of zones by repeatedly splitting the zone that
+     * holds a random point, as joining nodes do.
+     *
+     * @param zoneCount - Number of zones
+     * @param random - Source of join points
+     * @return List<Zone>
+     */
+    private static List<Zone> buildZones(int zoneCount, Random random) {
+        List<Zone> zones = new ArrayList<>();
+        zones.add(Zone.fullSpace());
+
+        while (zones.size() < zoneCount) {
+            double[] p = new double[Zone.DIMENSIONS];
+            for (int dim = 0; dim < p.length; dim++) {
+                p[dim] = random.nextDouble() * Zone.SPACE_MAX;
+            }
+
+            for (Zone zone : zones) {
+                if (zone.isPointInZone(p)) {
+                    ZoneData newZone = new ZoneData();
+                    zone.splitZone(newZone);
+                    zones.add(newZone.getZone());
+                    break;
+                }
+            }
+        }
+
+        return zones;
+    }
+
+    /**
+     * Prints load distribution over zones.
+     *
+     * @param keywordCount - Number of keywords in corpus
+     * @param pointCount - Number of distinct points keywords map to
+     * @param zones - Zones of overlay
+     * @param load - Keywords per zone
+     */
+    private static void printReport(int keywordCount, int pointCount, List<Zone> zones, int[] load) {
+        int empty = 0;
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        for (int count : load) {
+            if (count == 0)
+                empty++;
+            min = Math.min(min, count);
+            max = Math.max(max, count);
+        }
+
+        double mean = (double) keywordCount / zones.size();
+        double variance = 0.0;
+        for (int count : load) {
+            variance += Math.pow(count - mean, 2);
+        }
+        double stdDev = Math.sqrt(variance / zones.size());
+
+        System.out.println("Keywords       : " + keywordCount);
+        System.out.println("Distinct points: " + pointCount);
+        System.out.println("Zones          : " + zones.size());
+        System.out.println("Empty zones    : " + empty);
+        System.out.println(String.format("Load min/max   : %d / %d", min, max));
+        System.out.println(String.format("Load mean/std  : %.2f / %.2f", mean, stdDev));
+        System.out.println(String.format("Max / mean     : %.2f", (mean > 0) ? max / mean : 0.0));
+
+        System.out.println("Most loaded zones:");
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < load.length; i++) {
+            order.add(i);
+        }
+        order.sort((a, b) -> load[b] - load[a]);
+        for (int i = 0; i < Math.min(TOP_ZONES, order.size()); i++) {
+            int index = order.get(i);
+            System.out.println("  " + load[index] + "\t" + zones.get(index));
+        }
+    }
+}
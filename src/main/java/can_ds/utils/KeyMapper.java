@@ -0,0 +1,35 @@
+package can_ds.utils;
+
+/**
+ * Maps a keyword to the point of the coordinate space where its files are
+ * stored. All nodes of an overlay must use the same mapper, selected with
+ * -Dcan.keymapper=hash|sum (default hash).
+ */
+public interface KeyMapper {
+
+    /**
+     * Returns point in coordinate space for given keyword. Every coordinate
+     * lies in [0, Zone.SPACE_MAX).
+     *
+     * @param keyword - Keyword for file
+     * @return double[]
+     */
+    double[] toPoint(String keyword);
+
+    /**
+     * Returns key mapper with given name.
+     *
+     * @param name - Mapper name: hash or sum
+     * @return KeyMapper
+     */
+    static KeyMapper forName(String name) {
+        switch (name.toLowerCase()) {
+            case "sum":
+                return new SumKeyMapper();
+            case "hash":
+                return new HashKeyMapper();
+            default:
+                throw new IllegalArgumentException("Unknown key mapper " + name);
+        }
+    }
+}
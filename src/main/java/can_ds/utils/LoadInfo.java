@@ -0,0 +1,131 @@
+package can_ds.utils;
+
+import can_ds.interfaces.NodeInterface;
+
+import java.io.Serializable;
+import java.util.List;
+
+public class LoadInfo implements Serializable {
+    /**
+     * Remote stub of reporting node.
+     */
+    private NodeInterface nodeStub;
+
+    /**
+     * Zone of reporting node.
+     */
+    private Zone zone;
+
+    /**
+     * Number of data items stored.
+     */
+    private int itemCount;
+
+    /**
+     * Bytes of files stored.
+     */
+    private long bytes;
+
+    /**
+     * Recent requests served per second.
+     */
+    private double requestRate;
+
+    /**
+     * Constructor.
+     *
+     * @param nodeStub - Remote stub of reporting node
+     * @param zone - Zone of reporting node
+     * @param itemCount - Number of data items stored
+     * @param bytes - Bytes of files stored
+     * @param requestRate - Recent requests served per second
+     */
+    public LoadInfo(NodeInterface nodeStub, Zone zone, int itemCount, long bytes, double requestRate) {
+        this.nodeStub = nodeStub;
+        this.zone = zone;
+        this.itemCount = itemCount;
+        this.bytes = bytes;
+        this.requestRate = requestRate;
+    }
+
+    /**
+     * Returns the most loaded of given zones. Items, bytes and request rate
+     * are each scaled by their maximum over all candidates and summed, so
+     * no measure dominates because of its unit. Ties, e.g. in an overlay
+     * without data, go to the largest zone.
+     *
+     * @param candidates - Load of candidate zones
+     * @return LoadInfo - Most loaded candidate, null if none given
+     */
+    public static LoadInfo mostLoaded(List<LoadInfo> candidates) {
+        int maxItems = 0;
+        long maxBytes = 0;
+        double maxRate = 0.0;
+        for (LoadInfo load : candidates) {
+            maxItems = Math.max(maxItems, load.itemCount);
+            maxBytes = Math.max(maxBytes, load.bytes);
+            maxRate = Math.max(maxRate, load.requestRate);
+        }
+
+        LoadInfo best = null;
+        double bestScore = -1.0;
+        for (LoadInfo load : candidates) {
+            double score = ((maxItems > 0) ? (double) load.itemCount / maxItems : 0.0) +
+                           ((maxBytes > 0) ? (double) load.bytes / maxBytes : 0.0) +
+                           ((maxRate > 0) ? load.requestRate / maxRate : 0.0);
+
+            if (best == null || score > bestScore ||
+                    (score == bestScore && load.zone.volume() > best.zone.volume())) {
+                best = load;
+                bestScore = score;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Returns remote stub of reporting node.
+     *
+     * @return NodeInterface
+     */
+    public NodeInterface getNodeStub() {
+        return nodeStub;
+    }
+
+    /**
+     * Returns zone of reporting node.
+     *
+     * @return Zone
+     */
+    public Zone getZone() {
+        return zone;
+    }
+
+    /**
+     * Returns number of data items stored.
+     *
+     * @return int
+     */
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    /**
+     * Returns bytes of files stored.
+     *
+     * @return long
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns recent requests served per second.
+     *
+     * @return double
+     */
+    public double getRequestRate() {
+        return requestRate;
+    }
+}
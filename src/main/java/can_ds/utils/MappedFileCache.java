@@ -0,0 +1,135 @@
+package can_ds.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of read-only memory mappings of stored files. Reads copy
+ * slices straight out of a mapping, so popular files are served from the
+ * page cache without opening or reading them again. Least recently used
+ * mappings are dropped once MAX_FILES or MAX_BYTES is exceeded and are
+ * unmapped when garbage collected.
+ *
+ * Only meant for files that never change once written, such as contents
+ * named by their hash. Serves chunked RMI downloads, the data server
+ * streams files without mapping them.
+ */
+public class MappedFileCache {
+    /**
+     * Max files mapped at a time.
+     */
+    public static final int MAX_FILES = 256;
+
+    /**
+     * Max bytes mapped at a time. Larger files are not mapped.
+     */
+    public static final long MAX_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * Mappings keyed by file in access order.
+     */
+    private final LinkedHashMap<File, MappedByteBuffer> mappings;
+
+    /**
+     * Bytes currently mapped.
+     */
+    private long mappedBytes;
+
+    /**
+     * Creates an empty cache.
+     */
+    public MappedFileCache() {
+        this.mappings = new LinkedHashMap<>(16, 0.75f, true);
+        this.mappedBytes = 0;
+    }
+
+    /**
+     * Reads a slice of given file from its mapping, mapping the file first
+     * if needed.
+     *
+     * @param file - File to read
+     * @param offset - Starting offset
+     * @param length - Max bytes to read
+     * @return byte[] - Slice read, empty at end of file, null if file is too large to map
+     * @throws IOException - If file cannot be mapped
+     */
+    public byte[] read(File file, long offset, int length) throws IOException {
+        MappedByteBuffer mapping = this.map(file);
+        if (mapping == null) {
+            return null;
+        }
+
+        int position = (int) Math.min(Math.max(0, offset), mapping.capacity());
+        byte[] slice = new byte[Math.min(Math.max(0, length), mapping.capacity() - position)];
+
+        // Read through a duplicate, leaving position of shared mapping untouched
+        ByteBuffer view = mapping.duplicate();
+        ((Buffer) view).position(position);
+        view.get(slice);
+
+        return slice;
+    }
+
+    /**
+     * Returns mapping of given file, null if it is too large to map.
+     *
+     * @param file - File to map
+     * @return MappedByteBuffer
+     * @throws IOException - If file cannot be mapped
+     */
+    private synchronized MappedByteBuffer map(File file) throws IOException {
+        MappedByteBuffer mapping = this.mappings.get(file);
+        if (mapping != null) {
+            return mapping;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            long size = channel.size();
+            if (size > MAX_BYTES) {
+                return null;
+            }
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        this.mappings.put(file, mapping);
+        this.mappedBytes += mapping.capacity();
+
+        // Evict least recently used mappings, keeping the new one
+        Iterator<Map.Entry<File, MappedByteBuffer>> it = this.mappings.entrySet().iterator();
+        while ((this.mappings.size() > MAX_FILES || this.mappedBytes > MAX_BYTES)
+                && this.mappings.size() > 1) {
+            Map.Entry<File, MappedByteBuffer> eldest = it.next();
+            this.mappedBytes -= eldest.getValue().capacity();
+            it.remove();
+        }
+
+        return mapping;
+    }
+
+    /**
+     * Drops mapping of given file, e.g. before it is deleted.
+     *
+     * @param file - Mapped file
+     */
+    public synchronized void invalidate(File file) {
+        MappedByteBuffer mapping = this.mappings.remove(file);
+        if (mapping != null) {
+            this.mappedBytes -= mapping.capacity();
+        }
+    }
+
+    /**
+     * Drops all mappings.
+     */
+    public synchronized void clear() {
+        this.mappings.clear();
+        this.mappedBytes = 0;
+    }
+}
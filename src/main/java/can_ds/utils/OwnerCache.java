@@ -0,0 +1,102 @@
+package can_ds.utils;
+
+import can_ds.interfaces.NodeInterface;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of zone owners resolved by searches that passed through a
+ * node. Least recently used entries are evicted once the cache is full and
+ * entries expire after TTL_MS.
+ */
+public class OwnerCache {
+    /**
+     * Max points cached.
+     */
+    public static final int CAPACITY = 1024;
+
+    /**
+     * Time an entry stays valid.
+     */
+    public static final long TTL_MS = 30000;
+
+    /**
+     * Cached owners in access order.
+     */
+    private final LinkedHashMap<Point, Entry> entries;
+
+    /**
+     * Creates an empty cache.
+     */
+    public OwnerCache() {
+        this.entries = new LinkedHashMap<Point, OwnerCache.Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Point, OwnerCache.Entry> eldest) {
+                return size() > CAPACITY;
+            }
+        };
+    }
+
+    /**
+     * Records owner of given point.
+     *
+     * @param p - Coordinates of point
+     * @param reality - Reality in which owner holds point
+     * @param owner - Remote stub of owner
+     */
+    public synchronized void put(double[] p, int reality, NodeInterface owner) {
+        this.entries.put(new Point(p), new Entry(reality, owner, System.currentTimeMillis() + TTL_MS));
+    }
+
+    /**
+     * Returns cached owner of given point, null if not cached or expired.
+     *
+     * @param p - Coordinates of point
+     * @param reality - Reality to route in, RoutingData.ANY_REALITY for any
+     * @return NodeInterface
+     */
+    public synchronized NodeInterface get(double[] p, int reality) {
+        Point point = new Point(p);
+        Entry entry = this.entries.get(point);
+        if (entry == null) {
+            return null;
+        }
+
+        if (entry.expiresAt < System.currentTimeMillis()) {
+            this.entries.remove(point);
+            return null;
+        }
+
+        return (reality == RoutingData.ANY_REALITY || reality == entry.reality) ? entry.owner : null;
+    }
+
+    /**
+     * Drops all entries of given owner, e.g. after its zone changed.
+     *
+     * @param owner - Remote stub of owner
+     */
+    public synchronized void invalidate(NodeInterface owner) {
+        for (Iterator<Entry> it = this.entries.values().iterator(); it.hasNext(); ) {
+            if (it.next().owner.equals(owner)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Cached owner of a point.
+     */
+    private static class Entry {
+        private final int reality;
+        private final NodeInterface owner;
+        private final long expiresAt;
+
+        private Entry(int reality, NodeInterface owner, long expiresAt) {
+            this.reality = reality;
+            this.owner = owner;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package can_ds.utils;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+public class Point implements Serializable {
+
+    /**
+     * Coordinates along each dimension.
+     */
+    private final double[] coords;
+
+    /**
+     * Constructor that sets the coordinates of a point.
+     *
+     * @param coords - Coordinates along each dimension
+     */
+    public Point(double[] coords) {
+        this.coords = coords.clone();
+    }
+
+    /**
+     * Returns number of dimensions of point.
+     *
+     * @return int
+     */
+    public int getDimensions() {
+        return coords.length;
+    }
+
+    /**
+     * Returns coordinate along given dimension.
+     *
+     * @param dim - Dimension
+     * @return double
+     */
+    public double get(int dim) {
+        return coords[dim];
+    }
+
+    /**
+     * Returns copy of coordinates.
+     *
+     * @return double[]
+     */
+    public double[] toArray() {
+        return coords.clone();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof Point))
+            return false;
+
+        return Arrays.equals(this.coords, ((Point) o).coords);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(coords);
+    }
+
+    /**
+     * Returns comma separated coordinates.
+     *
+     * @return String
+     */
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+        for (int dim = 0; dim < coords.length; dim++) {
+            if (dim > 0)
+                str.append(",");
+            str.append(coords[dim]);
+        }
+
+        return str.toString();
+    }
+}
@@ -0,0 +1,59 @@
+package can_ds.utils;
+
+/**
+ * Exponentially decayed request rate. Each request adds 1 / TAU_SECONDS and
+ * the total decays with time constant TAU_SECONDS, so a steady stream of
+ * requests converges to its rate per second while bursts fade out.
+ */
+public class RequestRate {
+    /**
+     * Time constant of decay in seconds.
+     */
+    public static final double TAU_SECONDS = 60.0;
+
+    /**
+     * Rate at time of last update.
+     */
+    private double rate;
+
+    /**
+     * Time of last update in nanoseconds.
+     */
+    private long lastUpdate;
+
+    /**
+     * Creates a zero rate.
+     */
+    public RequestRate() {
+        this.rate = 0.0;
+        this.lastUpdate = System.nanoTime();
+    }
+
+    /**
+     * Records one request.
+     */
+    public synchronized void record() {
+        this.decay();
+        this.rate += 1.0 / TAU_SECONDS;
+    }
+
+    /**
+     * Returns current rate in requests per second.
+     *
+     * @return double
+     */
+    public synchronized double perSecond() {
+        this.decay();
+        return this.rate;
+    }
+
+    /**
+     * Decays rate to current time.
+     */
+    private void decay() {
+        long now = System.nanoTime();
+        double elapsed = (now - this.lastUpdate) / 1e9;
+        this.rate *= Math.exp(-elapsed / TAU_SECONDS);
+        this.lastUpdate = now;
+    }
+}
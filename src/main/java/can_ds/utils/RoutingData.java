@@ -2,18 +2,33 @@ package can_ds.utils;
 
 import can_ds.interfaces.NodeInterface;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
-public class RoutingData implements Serializable {
+public class RoutingData implements Externalizable {
     /**
-     * X coordinate of point to search.
+     * Reality value letting each hop route in whichever reality is closest.
      */
-    private double x;
+    public static final int ANY_REALITY = -1;
 
     /**
-     * Y coordinate of point to search.
+     * Operations sent as a one byte code, others are sent by name.
      */
-    private double y;
+    private static final String[] OPS = { "join", "insert", "search", "probe", "range" };
+
+    /**
+     * Coordinates of point to search.
+     */
+    private double[] point;
+
+    /**
+     * Reality to route in, ANY_REALITY to pick one at each hop.
+     */
+    private int reality;
 
     /**
      * Remote interface of node that has initiated search.
@@ -21,7 +36,7 @@ public class RoutingData implements Serializable {
     private NodeInterface origNode;
 
     /**
-     * Path for reaching point (x,y).
+     * Path for reaching point.
      */
     private String path;
 
@@ -35,21 +50,119 @@ public class RoutingData implements Serializable {
      */
     private String fileName;
 
+    /**
+     * Content hash of file for insert op.
+     */
+    private String contentHash;
+
+    /**
+     * Request ID assigned by origin node.
+     */
+    private long requestID;
+
+    /**
+     * Whether nodes should queue and forward this request asynchronously.
+     */
+    private boolean async;
+
+    /**
+     * ID's of nodes that have forwarded this request, never chosen as next
+     * hop again so detours around failed nodes cannot loop.
+     */
+    private Set<Integer> visited;
+
+    /**
+     * Region of coordinate space for range op.
+     */
+    private Zone region;
+
     /**
      * Constructor for  RoutingData object.
      *
-     * @param x - x coordinate of destination
-     * @param y - y coordinate of destination
+     * @param point - Coordinates of destination
      * @param node - Remote interface of origin node
      * @param op - Operation requested
      */
-    public RoutingData(double x, double y, NodeInterface node, String op) {
-        this.x = x;
-        this.y = y;
+    public RoutingData(double[] point, NodeInterface node, String op) {
+        this.point = point;
+        this.reality = 0;
         this.origNode = node;
         this.op = op;
         this.path = "";
         this.fileName = "";
+        this.requestID = -1;
+        this.async = false;
+        this.visited = new LinkedHashSet<>();
+    }
+
+    /**
+     * Constructor used by deserialization.
+     */
+    public RoutingData() {
+        this.visited = new LinkedHashSet<>();
+    }
+
+    /**
+     * Writes request in compact binary form, one byte op code first.
+     *
+     * @param out - Output
+     * @throws IOException
+     */
+    public void writeExternal(ObjectOutput out) throws IOException {
+        int opCode = 0;
+        for (int i = 0; i < OPS.length; i++) {
+            if (OPS[i].equals(this.op)) {
+                opCode = i + 1;
+                break;
+            }
+        }
+        out.writeByte(opCode);
+        if (opCode == 0) {
+            WireFormat.writeString(out, this.op);
+        }
+
+        out.writeBoolean(this.async);
+        WireFormat.writeDoubles(out, this.point);
+        WireFormat.writeVarInt(out, this.reality);
+        WireFormat.writeVarLong(out, this.requestID);
+        WireFormat.writeString(out, this.path);
+        WireFormat.writeString(out, this.fileName);
+        WireFormat.writeHash(out, this.contentHash);
+        WireFormat.writeZone(out, this.region);
+
+        out.writeObject(this.origNode);
+        WireFormat.writeVarInt(out, this.visited.size());
+        for (int id : this.visited) {
+            WireFormat.writeVarInt(out, id);
+        }
+    }
+
+    /**
+     * Reads request written by writeExternal.
+     *
+     * @param in - Input
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        int opCode = in.readUnsignedByte();
+        this.op = (opCode == 0) ? WireFormat.readString(in) : OPS[opCode - 1];
+
+        this.async = in.readBoolean();
+        this.point = WireFormat.readDoubles(in);
+        this.reality = WireFormat.readVarInt(in);
+        this.requestID = WireFormat.readVarLong(in);
+        this.path = WireFormat.readString(in);
+        this.fileName = WireFormat.readString(in);
+        this.contentHash = WireFormat.readHash(in);
+        this.region = WireFormat.readZone(in);
+
+        this.origNode = (NodeInterface) in.readObject();
+        int visitedCount = WireFormat.readVarInt(in);
+        this.visited = new LinkedHashSet<>();
+        for (int i = 0; i < visitedCount; i++) {
+            this.visited.add(WireFormat.readVarInt(in));
+        }
     }
 
     /**
@@ -71,21 +184,48 @@ public class RoutingData implements Serializable {
     }
 
     /**
-     * Returns x coordinate of destination.
+     * Returns content hash of file for insert op.
+     *
+     * @return String
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * Sets content hash of file for insert op.
      *
-     * @return double - x coordinate
+     * @param contentHash - SHA-256 hash of file content
      */
-    public double getX() {
-        return x;
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
     }
 
     /**
-     * Returns y coordinate of destination.
+     * Returns coordinates of destination.
      *
-     * @return double - y coordinate
+     * @return double[] - Destination point
      */
-    public double getY() {
-        return y;
+    public double[] getPoint() {
+        return point;
+    }
+
+    /**
+     * Returns reality to route in.
+     *
+     * @return int - Reality index or ANY_REALITY
+     */
+    public int getReality() {
+        return reality;
+    }
+
+    /**
+     * Sets reality to route in.
+     *
+     * @param reality - Reality index or ANY_REALITY
+     */
+    public void setReality(int reality) {
+        this.reality = reality;
     }
 
     /**
@@ -123,4 +263,77 @@ public class RoutingData implements Serializable {
     public void setPath(String path) {
         this.path = path;
     }
+
+    /**
+     * Returns request ID assigned by origin node.
+     *
+     * @return long
+     */
+    public long getRequestID() {
+        return requestID;
+    }
+
+    /**
+     * Sets request ID assigned by origin node.
+     *
+     * @param requestID - Request ID
+     */
+    public void setRequestID(long requestID) {
+        this.requestID = requestID;
+    }
+
+    /**
+     * Returns if request is forwarded asynchronously.
+     *
+     * @return boolean
+     */
+    public boolean isAsync() {
+        return async;
+    }
+
+    /**
+     * Sets if request is forwarded asynchronously.
+     *
+     * @param async - true for asynchronous forwarding
+     */
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    /**
+     * Returns region of coordinate space for range op.
+     *
+     * @return Zone
+     */
+    public Zone getRegion() {
+        return region;
+    }
+
+    /**
+     * Sets region of coordinate space for range op.
+     *
+     * @param region - Region of coordinate space
+     */
+    public void setRegion(Zone region) {
+        this.region = region;
+    }
+
+    /**
+     * Returns ID's of nodes that have forwarded this request.
+     *
+     * @return Set<Integer>
+     */
+    public Set<Integer> getVisited() {
+        return visited;
+    }
+
+    /**
+     * Records node forwarding this request, once however often it is
+     * passed through.
+     *
+     * @param id - ID of forwarding node
+     */
+    public void addVisited(int id) {
+        this.visited.add(id);
+    }
 }
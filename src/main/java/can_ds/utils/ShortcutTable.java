@@ -0,0 +1,182 @@
+package can_ds.utils;
+
+import can_ds.interfaces.NodeInterface;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Long range links of a node to remote zones, one per distance scale.
+ * Level k holds a zone at distance SPACE_MAX / 2^(k+1) to SPACE_MAX / 2^k
+ * from the center of our zone, so like in a small world network every
+ * hop via a shortcut can halve the remaining distance.
+ */
+public class ShortcutTable {
+    /**
+     * Number of distance scales, closer zones are left to neighbors.
+     */
+    public static final int LEVELS = 4;
+
+    /**
+     * Remote stubs of shortcuts by level.
+     */
+    private final NodeInterface[] nodes;
+
+    /**
+     * Last known zones of shortcuts by level.
+     */
+    private final Zone[] zones;
+
+    /**
+     * Creates empty table.
+     */
+    public ShortcutTable() {
+        this.nodes = new NodeInterface[LEVELS];
+        this.zones = new Zone[LEVELS];
+    }
+
+    /**
+     * Returns level of given zone seen from our zone, -1 if it is too
+     * close for a shortcut.
+     *
+     * @param ownZone - Zone owned by us
+     * @param zone - Zone of remote node
+     * @return int
+     */
+    public static int level(Zone ownZone, Zone zone) {
+        double dist = zone.zoneDistance(ownZone.center());
+        if (dist <= 0) {
+            return -1;
+        }
+
+        int level = Math.max(0, (int) Math.floor(Math.log(Zone.SPACE_MAX / dist) / Math.log(2)));
+        return (level < LEVELS) ? level : -1;
+    }
+
+    /**
+     * Returns random point of coordinate space at distance scale of given
+     * level from the center of our zone.
+     *
+     * @param ownZone - Zone owned by us
+     * @param level - Distance scale
+     * @return double[]
+     */
+    public static double[] samplePoint(Zone ownZone, int level) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double[] center = ownZone.center();
+
+        // Random direction
+        double[] dir = new double[Zone.DIMENSIONS];
+        double norm = 0.0;
+        for (int dim = 0; dim < dir.length; dim++) {
+            dir[dim] = random.nextGaussian();
+            norm += dir[dim] * dir[dim];
+        }
+        norm = Math.sqrt(norm);
+
+        double radius = random.nextDouble(Zone.SPACE_MAX / Math.pow(2, level + 1),
+                                          Zone.SPACE_MAX / Math.pow(2, level));
+        double[] p = new double[Zone.DIMENSIONS];
+        for (int dim = 0; dim < p.length; dim++) {
+            double coord = center[dim] + radius * dir[dim] / norm;
+            p[dim] = Math.max(0.0, Math.min(coord, Math.nextDown(Zone.SPACE_MAX)));
+        }
+
+        return p;
+    }
+
+    /**
+     * Places node at level of its zone, replacing the shortcut held there.
+     * Nodes whose zone neighbors ours or is too close are only removed.
+     *
+     * @param ownZone - Zone owned by us, null if none
+     * @param node - Remote stub of node
+     * @param zone - Zone of node
+     * @return boolean - true if node was placed
+     */
+    public synchronized boolean offer(Zone ownZone, NodeInterface node, Zone zone) {
+        this.remove(node);
+        if (ownZone == null || zone == null || ownZone.equals(zone) || ownZone.isNeighbor(zone)) {
+            return false;
+        }
+
+        int level = level(ownZone, zone);
+        if (level < 0) {
+            return false;
+        }
+
+        this.nodes[level] = node;
+        this.zones[level] = zone;
+        return true;
+    }
+
+    /**
+     * Updates zone of given node if it is a shortcut.
+     *
+     * @param node - Remote stub of node
+     * @param zone - New zone of node
+     */
+    public synchronized void update(NodeInterface node, Zone zone) {
+        for (int level = 0; level < LEVELS; level++) {
+            if (node.equals(this.nodes[level])) {
+                this.zones[level] = zone;
+            }
+        }
+    }
+
+    /**
+     * Removes given node.
+     *
+     * @param node - Remote stub of node
+     */
+    public synchronized void remove(NodeInterface node) {
+        for (int level = 0; level < LEVELS; level++) {
+            if (node.equals(this.nodes[level])) {
+                this.nodes[level] = null;
+                this.zones[level] = null;
+            }
+        }
+    }
+
+    /**
+     * Removes all shortcuts.
+     */
+    public synchronized void clear() {
+        for (int level = 0; level < LEVELS; level++) {
+            this.nodes[level] = null;
+            this.zones[level] = null;
+        }
+    }
+
+    /**
+     * Returns lowest level without a shortcut, -1 if all are set.
+     *
+     * @return int
+     */
+    public synchronized int emptyLevel() {
+        for (int level = 0; level < LEVELS; level++) {
+            if (this.nodes[level] == null) {
+                return level;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns copy of shortcuts and their zones.
+     *
+     * @return Map<NodeInterface, Zone>
+     */
+    public synchronized Map<NodeInterface, Zone> getShortcuts() {
+        Map<NodeInterface, Zone> shortcuts = new HashMap<>();
+        for (int level = 0; level < LEVELS; level++) {
+            if (this.nodes[level] != null) {
+                shortcuts.put(this.nodes[level], this.zones[level]);
+            }
+        }
+
+        return shortcuts;
+    }
+}
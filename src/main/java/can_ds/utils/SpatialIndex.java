@@ -0,0 +1,371 @@
+package can_ds.utils;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Data items of a zone: file names stored at each point together with the
+ * content hash of each file. Points are hashed
+ * for constant time lookups and also kept sorted along every dimension, so
+ * the points moved by a zone split are found without scanning the rest.
+ * Lookups read concurrent maps without locking, changes are serialized on
+ * the index. Only points, file names and hashes are sent over the wire,
+ * sorted axes and reference counts are rebuilt by the receiver.
+ */
+public class SpatialIndex implements Externalizable {
+
+    /**
+     * Content hashes of file names stored at each point.
+     */
+    private Map<Point, Map<String, String>> items;
+
+    /**
+     * Points sorted by coordinate, one map per dimension. Only accessed
+     * while holding the index lock.
+     */
+    private List<TreeMap<Double, Set<Point>>> axes;
+
+    /**
+     * Number of file names referencing each content hash.
+     */
+    private Map<String, Integer> contentRefs;
+
+    /**
+     * Creates an empty index.
+     */
+    public SpatialIndex() {
+        this.items = new ConcurrentHashMap<>();
+        this.axes = new ArrayList<>();
+        for (int dim = 0; dim < Zone.DIMENSIONS; dim++) {
+            this.axes.add(new TreeMap<>());
+        }
+        this.contentRefs = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Writes points with their file names and content hashes.
+     *
+     * @param out - Output
+     * @throws IOException
+     */
+    public synchronized void writeExternal(ObjectOutput out) throws IOException {
+        WireFormat.writeVarInt(out, this.items.size());
+        for (Map.Entry<Point, Map<String, String>> entry : this.items.entrySet()) {
+            WireFormat.writeDoubles(out, entry.getKey().toArray());
+            WireFormat.writeVarInt(out, entry.getValue().size());
+            for (Map.Entry<String, String> file : entry.getValue().entrySet()) {
+                WireFormat.writeString(out, file.getKey());
+                WireFormat.writeHash(out, file.getValue());
+            }
+        }
+    }
+
+    /**
+     * Reads index written by writeExternal.
+     *
+     * @param in - Input
+     * @throws IOException
+     */
+    public synchronized void readExternal(ObjectInput in) throws IOException {
+        int points = WireFormat.readVarInt(in);
+        for (int i = 0; i < points; i++) {
+            Point point = new Point(WireFormat.readDoubles(in));
+            int files = WireFormat.readVarInt(in);
+            for (int j = 0; j < files; j++) {
+                String fileName = WireFormat.readString(in);
+                this.add(point, fileName, WireFormat.readHash(in));
+            }
+        }
+    }
+
+    /**
+     * Adds file name with given content at given point, replacing content
+     * stored under that name before.
+     *
+     * @param p - Coordinates of point
+     * @param fileName - File name
+     * @param hash - Content hash of file
+     * @return boolean - false if same content was already stored under name
+     */
+    public boolean add(double[] p, String fileName, String hash) {
+        return this.add(new Point(p), fileName, hash);
+    }
+
+    /**
+     * Adds file name with given content at given point.
+     *
+     * @param point - Point
+     * @param fileName - File name
+     * @param hash - Content hash of file
+     * @return boolean - false if same content was already stored under name
+     */
+    private synchronized boolean add(Point point, String fileName, String hash) {
+        Map<String, String> fileNames = this.items.get(point);
+
+        if (fileNames == null) {
+            fileNames = new ConcurrentHashMap<>();
+            this.items.put(point, fileNames);
+            for (int dim = 0; dim < this.axes.size(); dim++) {
+                this.axes.get(dim).computeIfAbsent(point.get(dim), k -> new HashSet<>()).add(point);
+            }
+        }
+
+        String oldHash = fileNames.put(fileName, hash);
+        if (hash.equals(oldHash)) {
+            return false;
+        }
+        if (oldHash != null) {
+            this.release(oldHash);
+        }
+        this.contentRefs.merge(hash, 1, Integer::sum);
+
+        return true;
+    }
+
+    /**
+     * Drops one reference to given content hash.
+     *
+     * @param hash - Content hash
+     */
+    private void release(String hash) {
+        this.contentRefs.computeIfPresent(hash, (k, v) -> (v > 1) ? v - 1 : null);
+    }
+
+    /**
+     * Adds all file names of given index at their points.
+     *
+     * @param other - Index to add
+     */
+    public synchronized void addAll(SpatialIndex other) {
+        for (Map.Entry<Point, Map<String, String>> entry : other.entrySet()) {
+            for (Map.Entry<String, String> file : entry.getValue().entrySet()) {
+                this.add(entry.getKey(), file.getKey(), file.getValue());
+            }
+        }
+    }
+
+    /**
+     * Removes file name stored at given point if it still references given
+     * content.
+     *
+     * @param p - Coordinates of point
+     * @param fileName - File name
+     * @param hash - Content hash of file
+     * @return boolean - true if file name was removed
+     */
+    public synchronized boolean remove(double[] p, String fileName, String hash) {
+        Point point = new Point(p);
+        Map<String, String> fileNames = this.items.get(point);
+        if (fileNames == null || !fileNames.remove(fileName, hash)) {
+            return false;
+        }
+        this.release(hash);
+
+        // Drop point once its last file name is gone
+        if (fileNames.isEmpty()) {
+            this.items.remove(point);
+            for (int dim = 0; dim < this.axes.size(); dim++) {
+                Set<Point> points = this.axes.get(dim).get(point.get(dim));
+                points.remove(point);
+                if (points.isEmpty()) {
+                    this.axes.get(dim).remove(point.get(dim));
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Removes all file names of given index still referencing the same
+     * contents here.
+     *
+     * @param other - Index to remove
+     * @return SpatialIndex - File names removed
+     */
+    public synchronized SpatialIndex removeAll(SpatialIndex other) {
+        SpatialIndex removed = new SpatialIndex();
+        for (Map.Entry<Point, Map<String, String>> entry : other.entrySet()) {
+            for (Map.Entry<String, String> file : entry.getValue().entrySet()) {
+                if (this.remove(entry.getKey().toArray(), file.getKey(), file.getValue())) {
+                    removed.add(entry.getKey(), file.getKey(), file.getValue());
+                }
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Returns copy of file names whose content is among given hashes.
+     *
+     * @param hashes - Content hashes
+     * @return SpatialIndex
+     */
+    public SpatialIndex withContents(Set<String> hashes) {
+        SpatialIndex found = new SpatialIndex();
+        for (Map.Entry<Point, Map<String, String>> entry : this.items.entrySet()) {
+            for (Map.Entry<String, String> file : entry.getValue().entrySet()) {
+                if (hashes.contains(file.getValue())) {
+                    found.add(entry.getKey(), file.getKey(), file.getValue());
+                }
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Returns if file name is stored at given point.
+     *
+     * @param p - Coordinates of point
+     * @param fileName - File name
+     * @return boolean
+     */
+    public boolean contains(double[] p, String fileName) {
+        Map<String, String> fileNames = this.items.get(new Point(p));
+
+        return fileNames != null && fileNames.containsKey(fileName);
+    }
+
+    /**
+     * Returns content hash of file name stored at given point, null if it
+     * is not stored there.
+     *
+     * @param p - Coordinates of point
+     * @param fileName - File name
+     * @return String
+     */
+    public String get(double[] p, String fileName) {
+        Map<String, String> fileNames = this.items.get(new Point(p));
+
+        return (fileNames == null) ? null : fileNames.get(fileName);
+    }
+
+    /**
+     * Returns if any file name references given content.
+     *
+     * @param hash - Content hash
+     * @return boolean
+     */
+    public boolean containsContent(String hash) {
+        return this.contentRefs.containsKey(hash);
+    }
+
+    /**
+     * Returns hashes of all contents referenced.
+     *
+     * @return Set<String>
+     */
+    public Set<String> contentHashes() {
+        return Collections.unmodifiableSet(this.contentRefs.keySet());
+    }
+
+    /**
+     * Returns content hashes of file names stored at each point.
+     *
+     * @return Set<Map.Entry<Point, Map<String, String>>>
+     */
+    public Set<Map.Entry<Point, Map<String, String>>> entrySet() {
+        return Collections.unmodifiableMap(this.items).entrySet();
+    }
+
+    /**
+     * Returns number of file names stored over all points.
+     *
+     * @return int
+     */
+    public int size() {
+        int size = 0;
+        for (Map<String, String> fileNames : this.items.values()) {
+            size += fileNames.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns if no files are stored.
+     *
+     * @return boolean
+     */
+    public boolean isEmpty() {
+        return this.items.isEmpty();
+    }
+
+    /**
+     * Returns copy of points lying in given region and their file names.
+     * Candidates are taken from the slice of the region along the first
+     * dimension.
+     *
+     * @param region - Region of coordinate space
+     * @return SpatialIndex
+     */
+    public synchronized SpatialIndex within(Zone region) {
+        SpatialIndex found = new SpatialIndex();
+        NavigableMap<Double, Set<Point>> slice = this.axes.get(0).subMap(
+                region.getStart(0), true, region.getStart(0) + region.getSize(0), false);
+
+        for (Set<Point> points : slice.values()) {
+            for (Point point : points) {
+                if (!region.isPointInZone(point.toArray()))
+                    continue;
+
+                for (Map.Entry<String, String> file : this.items.get(point).entrySet()) {
+                    found.add(point, file.getKey(), file.getValue());
+                }
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Moves points whose coordinate along given dimension is at least
+     * given value to a new index, as done when a zone is split.
+     *
+     * @param dim - Dimension zone was split along
+     * @param start - Start of upper half along dimension
+     * @return SpatialIndex - Index with moved points
+     */
+    public synchronized SpatialIndex splitUpper(int dim, double start) {
+        SpatialIndex upper = new SpatialIndex();
+        NavigableMap<Double, Set<Point>> moved = this.axes.get(dim).tailMap(start, true);
+
+        for (Iterator<Set<Point>> it = moved.values().iterator(); it.hasNext(); ) {
+            for (Point point : it.next()) {
+                Map<String, String> fileNames = this.items.remove(point);
+                for (Map.Entry<String, String> file : fileNames.entrySet()) {
+                    this.release(file.getValue());
+                    upper.add(point, file.getKey(), file.getValue());
+                }
+
+                // Drop point from other dimensions
+                for (int other = 0; other < this.axes.size(); other++) {
+                    if (other == dim)
+                        continue;
+
+                    Set<Point> points = this.axes.get(other).get(point.get(other));
+                    points.remove(point);
+                    if (points.isEmpty()) {
+                        this.axes.get(other).remove(point.get(other));
+                    }
+                }
+            }
+            it.remove();
+        }
+
+        return upper;
+    }
+}
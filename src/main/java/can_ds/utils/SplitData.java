@@ -0,0 +1,136 @@
+package can_ds.utils;
+
+import can_ds.interfaces.NodeInterface;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+public class SplitData implements Externalizable {
+    /**
+     * Reality of split zone.
+     */
+    private int reality;
+
+    /**
+     * Remote stub of node whose zone was split.
+     */
+    private NodeInterface ownerStub;
+
+    /**
+     * Zone kept by splitting node.
+     */
+    private Zone ownerZone;
+
+    /**
+     * Remote stub of node given the new zone.
+     */
+    private NodeInterface newStub;
+
+    /**
+     * Zone given to new node.
+     */
+    private Zone newZone;
+
+    /**
+     * Constructor.
+     *
+     * @param reality - Reality of split zone
+     * @param ownerStub - Remote stub of splitting node
+     * @param ownerZone - Zone kept by splitting node
+     * @param newStub - Remote stub of new node
+     * @param newZone - Zone of new node
+     */
+    public SplitData(int reality,
+                     NodeInterface ownerStub,
+                     Zone ownerZone,
+                     NodeInterface newStub,
+                     Zone newZone)
+    {
+        this.reality = reality;
+        this.ownerStub = ownerStub;
+        this.ownerZone = ownerZone;
+        this.newStub = newStub;
+        this.newZone = newZone;
+    }
+
+    /**
+     * Constructor used by deserialization.
+     */
+    public SplitData() {}
+
+    /**
+     * Writes split in compact binary form.
+     *
+     * @param out - Output
+     * @throws IOException
+     */
+    public void writeExternal(ObjectOutput out) throws IOException {
+        WireFormat.writeVarInt(out, this.reality);
+        WireFormat.writeZone(out, this.ownerZone);
+        WireFormat.writeZone(out, this.newZone);
+        out.writeObject(this.ownerStub);
+        out.writeObject(this.newStub);
+    }
+
+    /**
+     * Reads split written by writeExternal.
+     *
+     * @param in - Input
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        this.reality = WireFormat.readVarInt(in);
+        this.ownerZone = WireFormat.readZone(in);
+        this.newZone = WireFormat.readZone(in);
+        this.ownerStub = (NodeInterface) in.readObject();
+        this.newStub = (NodeInterface) in.readObject();
+    }
+
+    /**
+     * Returns reality of split zone.
+     *
+     * @return int
+     */
+    public int getReality() {
+        return reality;
+    }
+
+    /**
+     * Returns remote stub of splitting node.
+     *
+     * @return NodeInterface
+     */
+    public NodeInterface getOwnerStub() {
+        return ownerStub;
+    }
+
+    /**
+     * Returns zone kept by splitting node.
+     *
+     * @return Zone
+     */
+    public Zone getOwnerZone() {
+        return ownerZone;
+    }
+
+    /**
+     * Returns remote stub of new node.
+     *
+     * @return NodeInterface
+     */
+    public NodeInterface getNewStub() {
+        return newStub;
+    }
+
+    /**
+     * Returns zone of new node.
+     *
+     * @return Zone
+     */
+    public Zone getNewZone() {
+        return newZone;
+    }
+}
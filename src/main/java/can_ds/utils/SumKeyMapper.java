@@ -0,0 +1,32 @@
+package can_ds.utils;
+
+/**
+ * Original mapping that sums numeric values of characters. Only produces
+ * whole coordinates, i.e. SPACE_MAX^DIMENSIONS distinct points, and is
+ * kept for overlays holding data inserted with it.
+ */
+public class SumKeyMapper implements KeyMapper {
+
+    /**
+     * Calculates point in coordinate space from given keyword. Coordinate
+     * along dimension k sums characters at positions i where
+     * i % DIMENSIONS == (k + 1) % DIMENSIONS.
+     *
+     * @param keyword - Keyword for file
+     * @return double[]
+     */
+    public double[] toPoint(String keyword) {
+        int dims = Zone.DIMENSIONS;
+        double[] point = new double[dims];
+        for (int i = 0; i < keyword.length(); i++) {
+            int dim = (i + dims - 1) % dims;
+            point[dim] += Character.getNumericValue(keyword.charAt(i));
+        }
+
+        for (int dim = 0; dim < dims; dim++) {
+            point[dim] = point[dim] % Zone.SPACE_MAX;
+        }
+
+        return point;
+    }
+}
@@ -0,0 +1,60 @@
+package can_ds.utils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.server.RMISocketFactory;
+
+/**
+ * RMI socket factory connecting with a timeout, so calls to an unreachable
+ * peer fail instead of blocking the calling thread. Replies are not timed
+ * out, as calls such as zone handoffs legitimately take long; slow peers are
+ * told from dead ones by heartbeats.
+ */
+public class TimeoutSocketFactory extends RMISocketFactory {
+    /**
+     * Time to wait for a connection to a peer.
+     */
+    private int connectTimeoutMs;
+
+    /**
+     * Creates factory with given connect timeout.
+     *
+     * @param connectTimeoutMs - Time to wait for a connection
+     */
+    public TimeoutSocketFactory(int connectTimeoutMs) {
+        this.connectTimeoutMs = connectTimeoutMs;
+    }
+
+    /**
+     * Connects to given host and port within the connect timeout.
+     *
+     * @param host - Host name
+     * @param port - Port
+     * @return Socket
+     * @throws IOException - If connection fails or times out
+     */
+    public Socket createSocket(String host, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), this.connectTimeoutMs);
+        }
+        catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * Creates server socket listening on given port.
+     *
+     * @param port - Port, 0 for any
+     * @return ServerSocket
+     * @throws IOException
+     */
+    public ServerSocket createServerSocket(int port) throws IOException {
+        return new ServerSocket(port);
+    }
+}
@@ -0,0 +1,92 @@
+package can_ds.utils;
+
+import java.io.Serializable;
+
+public class TransferHandle implements Serializable {
+    /**
+     * Address of data server holding the file.
+     */
+    private String host;
+
+    /**
+     * Port of data server holding the file.
+     */
+    private int port;
+
+    /**
+     * Token identifying the file at data server.
+     */
+    private long token;
+
+    /**
+     * Size of file in bytes.
+     */
+    private long size;
+
+    /**
+     * Codec payload is sent with, see Compression.
+     */
+    private int codec;
+
+    /**
+     * Constructor.
+     *
+     * @param host - Address of data server
+     * @param port - Port of data server
+     * @param token - Token identifying the file
+     * @param size - Size of file in bytes
+     * @param codec - Codec payload is sent with
+     */
+    public TransferHandle(String host, int port, long token, long size, int codec) {
+        this.host = host;
+        this.port = port;
+        this.token = token;
+        this.size = size;
+        this.codec = codec;
+    }
+
+    /**
+     * Returns address of data server.
+     *
+     * @return String
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Returns port of data server.
+     *
+     * @return int
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Returns token identifying the file.
+     *
+     * @return long
+     */
+    public long getToken() {
+        return token;
+    }
+
+    /**
+     * Returns size of file in bytes.
+     *
+     * @return long
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns codec payload is sent with.
+     *
+     * @return int
+     */
+    public int getCodec() {
+        return codec;
+    }
+}
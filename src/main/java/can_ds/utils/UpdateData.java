@@ -2,9 +2,17 @@ package can_ds.utils;
 
 import can_ds.interfaces.NodeInterface;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+public class UpdateData implements Externalizable {
+    /**
+     * Reality of sender's zone.
+     */
+    public int reality;
 
-public class UpdateData implements Serializable {
     /**
      * Zone of sender node.
      */
@@ -15,17 +23,66 @@ public class UpdateData implements Serializable {
      */
     public NodeInterface nodeStub;
 
+    /**
+     * Remote stub of node that left, handing its zone to sender. Null if
+     * no node left.
+     */
+    public NodeInterface departedStub;
+
     /**
      * Constructor.
      *
+     * @param reality - Reality of zone
      * @param zone - Zone details
      * @param nodeStub - Remote stub
      */
-    public UpdateData(Zone zone, NodeInterface nodeStub) {
+    public UpdateData(int reality, Zone zone, NodeInterface nodeStub) {
+        this.reality = reality;
         this.zone = zone;
         this.nodeStub = nodeStub;
     }
 
+    /**
+     * Constructor used by deserialization.
+     */
+    public UpdateData() {}
+
+    /**
+     * Writes update in compact binary form.
+     *
+     * @param out - Output
+     * @throws IOException
+     */
+    public void writeExternal(ObjectOutput out) throws IOException {
+        WireFormat.writeVarInt(out, this.reality);
+        WireFormat.writeZone(out, this.zone);
+        out.writeObject(this.nodeStub);
+        out.writeObject(this.departedStub);
+    }
+
+    /**
+     * Reads update written by writeExternal.
+     *
+     * @param in - Input
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        this.reality = WireFormat.readVarInt(in);
+        this.zone = WireFormat.readZone(in);
+        this.nodeStub = (NodeInterface) in.readObject();
+        this.departedStub = (NodeInterface) in.readObject();
+    }
+
+    /**
+     * Returns reality of sender's zone.
+     *
+     * @return int
+     */
+    public int getReality() {
+        return reality;
+    }
+
     /**
      * Returns zone associated with sender of update message.
      *
@@ -61,4 +118,22 @@ public class UpdateData implements Serializable {
     public void setNodeStub(NodeInterface nodeStub) {
         this.nodeStub = nodeStub;
     }
+
+    /**
+     * Returns remote stub of node that handed its zone to sender.
+     *
+     * @return NodeInterface
+     */
+    public NodeInterface getDepartedStub() {
+        return departedStub;
+    }
+
+    /**
+     * Sets remote stub of node that handed its zone to sender.
+     *
+     * @param departedStub - Remote stub
+     */
+    public void setDepartedStub(NodeInterface departedStub) {
+        this.departedStub = departedStub;
+    }
 }
@@ -9,9 +9,21 @@ import java.net.NetworkInterface;
 import java.rmi.RemoteException;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
 
 public class Utils {
 
+    /**
+     * Key mapper used to place keywords, set with -Dcan.keymapper.
+     */
+    public static final KeyMapper KEY_MAPPER =
+            KeyMapper.forName(System.getProperty("can.keymapper", "hash"));
+
+    /**
+     * Digits of hex strings.
+     */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     /**
      * Returns the IP address of current node.
      *
@@ -51,23 +63,34 @@ public class Utils {
         return ipAddress;
     }
 
+    /**
+     * Returns the first IP address of current node, loopback if none found.
+     *
+     * @return String
+     */
+    public static String getPrimaryAddress() {
+        String[] addresses = getAddress().trim().split(" ");
+
+        return addresses[0].isEmpty() ? "127.0.0.1" : addresses[0];
+    }
+
     /**
      * Returns the neighbor closest to given point.
      *
-     * @param px - x coordinate of destination
-     * @param py - y coordinate of destination
+     * @param reality - Reality to measure distance in
+     * @param p - Coordinates of destination
      * @param nodeStubs - Remote stubs of neighbor nodes
      * @return NodeInterface
      */
-    public static NodeInterface getNearestNeighbor(double px,
-                                                   double py,
+    public static NodeInterface getNearestNeighbor(int reality,
+                                                   double[] p,
                                                    List<NodeInterface> nodeStubs)
     {
         NodeInterface retNodeStub = null;
-        double min = 9999;
+        double min = Double.MAX_VALUE;
         for (NodeInterface nodeStub : nodeStubs) {
             try {
-                double dist = nodeStub.distToPoint(px, py);
+                double dist = nodeStub.distToPoint(reality, p);
                 if (dist < min) {
                     min = dist;
                     retNodeStub = nodeStub;
@@ -83,35 +106,116 @@ public class Utils {
     }
 
     /**
-     * Calculates y coordinate from given keyword.
+     * Returns the neighbor closest to given point using locally known
+     * neighbor zones. A remote distance query is only made for neighbors
+     * whose zone is not known yet. Ties are broken in favour of zones with
+     * the point on fewer of their excluded upper boundaries.
      *
-     * @param keyword - Keyword for file
-     * @return double
+     * @param reality - Reality to measure distance in
+     * @param p - Coordinates of destination
+     * @param nodeStubs - Remote stubs of neighbor nodes
+     * @param neighborZones - Known zones of neighbor nodes
+     * @return NodeInterface
      */
-    public static double calcXFromKeyword(String keyword) {
-        int i = 1;
-        double x = 0.0;
-        for (i = 1; i < keyword.length(); i += 2) {
-            x += Character.getNumericValue(keyword.charAt(i));
+    public static NodeInterface getNearestNeighbor(int reality,
+                                                   double[] p,
+                                                   List<NodeInterface> nodeStubs,
+                                                   Map<NodeInterface, Zone> neighborZones)
+    {
+        NodeInterface retNodeStub = null;
+        double min = Double.MAX_VALUE;
+        int minBoundary = Integer.MAX_VALUE;
+        for (NodeInterface nodeStub : nodeStubs) {
+            try {
+                Zone zone = neighborZones.get(nodeStub);
+                double dist = (zone != null) ?
+                        zone.zoneDistance(p) :
+                        nodeStub.distToPoint(reality, p);
+                int boundary = (zone != null) ? zone.boundaryCount(p) : 0;
+                if (dist < min || (dist == min && boundary < minBoundary)) {
+                    min = dist;
+                    minBoundary = boundary;
+                    retNodeStub = nodeStub;
+                }
+            }
+            catch (RemoteException e) {
+                System.out.println("ERROR: " + e.getMessage());
+                e.printStackTrace();
+            }
         }
 
-        return x % 10;
+        return retNodeStub;
     }
 
     /**
-     * Calculates y coordinate from given keyword.
+     * Returns if zone a is closer to given point than zone b, comparing
+     * distance first and excluded upper boundaries on ties. Unknown zones
+     * are never closer than known ones.
+     *
+     * @param a - First zone, may be null
+     * @param b - Second zone, may be null
+     * @param p - Coordinates of point
+     * @return boolean
+     */
+    public static boolean isCloser(Zone a, Zone b, double[] p) {
+        if (a == null)
+            return false;
+        if (b == null)
+            return true;
+
+        double distA = a.zoneDistance(p);
+        double distB = b.zoneDistance(p);
+
+        return distA < distB || (distA == distB && a.boundaryCount(p) < b.boundaryCount(p));
+    }
+
+    /**
+     * Calculates point in coordinate space from given keyword using the
+     * key mapper of the overlay.
      *
      * @param keyword - Keyword for file
-     * @return double
+     * @return double[]
      */
-    public static double calcYFromKeyword(String keyword) {
-        int i = 0;
-        double y = 0.0;
-        for (i = 0; i < keyword.length(); i += 2) {
-            y += Character.getNumericValue(keyword.charAt(i));
+    public static double[] calcPointFromKeyword(String keyword) {
+        return KEY_MAPPER.toPoint(keyword);
+    }
+
+    /**
+     * Returns bytes as lower case hex string.
+     *
+     * @param bytes - Bytes
+     * @return String
+     */
+    public static String toHex(byte[] bytes) {
+        char[] hex = new char[2 * bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Returns bytes of given hex string.
+     *
+     * @param hex - Hex string of even length
+     * @return byte[]
+     */
+    public static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Odd length hex string: " + hex);
         }
 
-        return y % 10;
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Not a hex string: " + hex);
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
     }
 
 }
@@ -0,0 +1,236 @@
+package can_ds.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Primitive encodings shared by the Externalizable messages exchanged
+ * between nodes. Integers are zigzag varints, so small IDs and -1 take
+ * one byte. Strings and arrays are prefixed with their length plus one,
+ * zero standing for null. Remote stubs are still written as objects, RMI
+ * replaces exported nodes by their stubs on the way.
+ */
+public class WireFormat {
+    /**
+     * Length of a SHA-256 content hash in bytes.
+     */
+    private static final int HASH_BYTES = 32;
+
+    /**
+     * Writes a signed int as zigzag varint.
+     *
+     * @param out - Output
+     * @param value - Value
+     * @throws IOException
+     */
+    public static void writeVarInt(DataOutput out, int value) throws IOException {
+        writeVarLong(out, value);
+    }
+
+    /**
+     * Reads a signed int written by writeVarInt.
+     *
+     * @param in - Input
+     * @return int
+     * @throws IOException
+     */
+    public static int readVarInt(DataInput in) throws IOException {
+        return (int) readVarLong(in);
+    }
+
+    /**
+     * Writes a signed long as zigzag varint.
+     *
+     * @param out - Output
+     * @param value - Value
+     * @throws IOException
+     */
+    public static void writeVarLong(DataOutput out, long value) throws IOException {
+        long bits = (value << 1) ^ (value >> 63);
+        while ((bits & ~0x7FL) != 0) {
+            out.writeByte((int) ((bits & 0x7F) | 0x80));
+            bits >>>= 7;
+        }
+        out.writeByte((int) bits);
+    }
+
+    /**
+     * Reads a signed long written by writeVarLong.
+     *
+     * @param in - Input
+     * @return long
+     * @throws IOException
+     */
+    public static long readVarLong(DataInput in) throws IOException {
+        long bits = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            bits |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (bits >>> 1) ^ -(bits & 1);
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Writes a string as UTF-8, may be null.
+     *
+     * @param out - Output
+     * @param value - String
+     * @throws IOException
+     */
+    public static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by writeString.
+     *
+     * @param in - Input
+     * @return String
+     * @throws IOException
+     */
+    public static String readString(DataInput in) throws IOException {
+        int length = readVarInt(in) - 1;
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a content hash, as raw bytes if it is a SHA-256 hex string.
+     *
+     * @param out - Output
+     * @param hash - Content hash, may be null
+     * @throws IOException
+     */
+    public static void writeHash(DataOutput out, String hash) throws IOException {
+        if (hash != null && hash.length() == 2 * HASH_BYTES && isLowerHex(hash)) {
+            out.writeBoolean(true);
+            out.write(Utils.fromHex(hash));
+        }
+        else {
+            out.writeBoolean(false);
+            writeString(out, hash);
+        }
+    }
+
+    /**
+     * Reads a content hash written by writeHash.
+     *
+     * @param in - Input
+     * @return String
+     * @throws IOException
+     */
+    public static String readHash(DataInput in) throws IOException {
+        if (!in.readBoolean()) {
+            return readString(in);
+        }
+
+        byte[] bytes = new byte[HASH_BYTES];
+        in.readFully(bytes);
+        return Utils.toHex(bytes);
+    }
+
+    /**
+     * Returns if string only holds lower case hex digits, as produced by
+     * ContentStore.hashOf.
+     *
+     * @param value - String
+     * @return boolean
+     */
+    private static boolean isLowerHex(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f')))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes coordinates, may be null.
+     *
+     * @param out - Output
+     * @param values - Coordinates
+     * @throws IOException
+     */
+    public static void writeDoubles(DataOutput out, double[] values) throws IOException {
+        if (values == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+
+        writeVarInt(out, values.length + 1);
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    /**
+     * Reads coordinates written by writeDoubles.
+     *
+     * @param in - Input
+     * @return double[]
+     * @throws IOException
+     */
+    public static double[] readDoubles(DataInput in) throws IOException {
+        int length = readVarInt(in) - 1;
+        if (length < 0) {
+            return null;
+        }
+
+        double[] values = new double[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = in.readDouble();
+        }
+        return values;
+    }
+
+    /**
+     * Writes a zone inline, without a class descriptor. May be null.
+     *
+     * @param out - Output
+     * @param zone - Zone
+     * @throws IOException
+     */
+    public static void writeZone(ObjectOutput out, Zone zone) throws IOException {
+        out.writeBoolean(zone != null);
+        if (zone != null) {
+            zone.writeExternal(out);
+        }
+    }
+
+    /**
+     * Reads a zone written by writeZone.
+     *
+     * @param in - Input
+     * @return Zone
+     * @throws IOException
+     */
+    public static Zone readZone(ObjectInput in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+
+        Zone zone = new Zone();
+        zone.readExternal(in);
+        return zone;
+    }
+}
@@ -2,197 +2,233 @@ package can_ds.utils;
 
 import can_ds.nodes.ZoneData;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
-public class Zone implements Serializable {
+public class Zone implements Externalizable {
 
     /**
-     * Starting x coordinate.
+     * Number of dimensions of coordinate space. All nodes of an overlay
+     * must use the same value, set with -Dcan.dims (default 2).
      */
-    private double x;
+    public static final int DIMENSIONS = Math.max(1, Integer.getInteger("can.dims", 2));
 
     /**
-     * Starting y coordinate.
+     * Maximum coordinate value along every dimension.
      */
-    private double y;
+    public static final double SPACE_MAX = 10.0;
 
     /**
-     * Length along x.
+     * Axis names used when displaying zones.
      */
-    private double width;
+    private static final String[] AXIS_NAMES = { "X", "Y", "Z" };
 
     /**
-     * Height along y.
+     * Neighbor position names of first two dimensions: { lower, upper }.
      */
-    private double height;
+    private static final String[][] POSITION_NAMES = {
+            { "left", "right" },
+            { "bottom", "top" }
+    };
 
     /**
-     * X mid-point coordinate.
+     * Starting coordinate along each dimension.
      */
-    private double midX;
+    private double[] start;
 
     /**
-     * Y mid-point coordinate
+     * Length along each dimension.
      */
-    private double midY;
+    private double[] size;
 
     /**
-     * Maximum width value.
+     * Default constructor.
      */
-    public static final double WIDTH_MAX = 10.0;
+    public Zone() {}
 
     /**
-     * Maximum height value.
+     * Constructor that sets the attributes of a zone.
+     *
+     * @param start - Starting coordinate along each dimension
+     * @param size - Length along each dimension
      */
-    public static final double HEIGHT_MAX = 10.0;
+    public Zone(double[] start, double[] size) {
+        this.start = start.clone();
+        this.size = size.clone();
+    }
 
     /**
-     * Default constructor.
+     * Copy constructor.
+     *
+     * @param z - Zone to copy
      */
-    public Zone() {}
+    public Zone(Zone z) {
+        this(z.start, z.size);
+    }
 
     /**
-     * Constructor that sets the attributes of a zone.
+     * Writes number of dimensions followed by start and size along each.
      *
-     * @param x - Starting x coordinate
-     * @param y - Starting y coordinate
-     * @param width - Length along x
-     * @param height - Length along y
-     */
-    public Zone(double x, double y, double width, double height) {
-        this.x = x;
-        this.y = y;
-        this.width = width;
-        this.height = height;
-        this.midX = this.x + (this.width / 2.0);
-        this.midY = this.y + (this.height / 2.0);
+     * @param out - Output
+     * @throws IOException
+     */
+    public void writeExternal(ObjectOutput out) throws IOException {
+        WireFormat.writeVarInt(out, this.start.length);
+        for (int dim = 0; dim < this.start.length; dim++) {
+            out.writeDouble(this.start[dim]);
+            out.writeDouble(this.size[dim]);
+        }
     }
 
     /**
-     * Set's starting x coordinate.
+     * Reads zone written by writeExternal.
      *
-     * @param x - Starting x coordinate
+     * @param in - Input
+     * @throws IOException
      */
-    public void setX(double x) {
-        this.x = x;
+    public void readExternal(ObjectInput in) throws IOException {
+        int dimensions = WireFormat.readVarInt(in);
+        this.start = new double[dimensions];
+        this.size = new double[dimensions];
+        for (int dim = 0; dim < dimensions; dim++) {
+            this.start[dim] = in.readDouble();
+            this.size[dim] = in.readDouble();
+        }
     }
 
     /**
-     * Set's starting y coordinate.
+     * Returns zone covering the entire coordinate space.
      *
-     * @param y - Starting y coordinate
+     * @return Zone
      */
-    public void setY(double y) {
-        this.y = y;
+    public static Zone fullSpace() {
+        double[] start = new double[DIMENSIONS];
+        double[] size = new double[DIMENSIONS];
+        for (int dim = 0; dim < DIMENSIONS; dim++) {
+            size[dim] = SPACE_MAX;
+        }
+
+        return new Zone(start, size);
     }
 
     /**
-     * Returns x coordinate of zone.
+     * Returns name of neighbor position along given dimension.
+     * First two dimensions use left/right and bottom/top, others use
+     * d<dim>- and d<dim>+.
      *
-     * @return double - x coordinate
+     * @param dim - Dimension
+     * @param upper - true for neighbors on upper side of dimension
+     * @return String
      */
-    public double getX() {
-        return x;
+    public static String position(int dim, boolean upper) {
+        if (dim < POSITION_NAMES.length) {
+            return POSITION_NAMES[dim][upper ? 1 : 0];
+        }
+
+        return "d" + dim + (upper ? "+" : "-");
     }
 
     /**
-     * Returns y coordinate of zone.
+     * Returns names of all neighbor positions in coordinate space.
      *
-     * @return double - y coordinate
+     * @return List<String>
      */
-    public double getY() {
-        return y;
+    public static List<String> positions() {
+        List<String> positions = new ArrayList<>();
+        for (int dim = 0; dim < DIMENSIONS; dim++) {
+            positions.add(position(dim, false));
+            positions.add(position(dim, true));
+        }
+
+        return positions;
     }
 
     /**
-     * Returns width.
+     * Returns number of dimensions of zone.
      *
-     * @return double - width
+     * @return int
      */
-    public double getWidth() {
-        return width;
+    public int getDimensions() {
+        return start.length;
     }
 
     /**
-     * Returns height.
+     * Returns starting coordinate along given dimension.
      *
-     * @return double - height
+     * @param dim - Dimension
+     * @return double
      */
-    public double getHeight() {
-        return height;
+    public double getStart(int dim) {
+        return start[dim];
     }
 
     /**
-     * Set's width along x.
+     * Returns length along given dimension.
      *
-     * @param width - Length along x
+     * @param dim - Dimension
+     * @return double
      */
-    public void setWidth(double width) {
-        this.width = width;
+    public double getSize(int dim) {
+        return size[dim];
     }
 
     /**
-     * Set's height along y.
+     * Set's length along given dimension.
      *
-     * @param height - Height along y.
+     * @param dim - Dimension
+     * @param size - Length along dimension
      */
-    public void setHeight(double height) {
-        this.height = height;
+    public void setSize(int dim, double size) {
+        this.size[dim] = size;
     }
 
     /**
      *
-     * @param px - x coordinate of point
-     * @param py - y coordinate of point
+     * @param p - Coordinates of point
      * @return boolean
      */
-    public boolean isPointInZone(double px, double py) {
-        if (this.x <= px && this.x + this.width > px) {
-            if (this.y <= py && this.y + this.height > py) {
-                return true;
+    public boolean isPointInZone(double[] p) {
+        for (int dim = 0; dim < start.length; dim++) {
+            if (!(this.start[dim] <= p[dim] && this.start[dim] + this.size[dim] > p[dim])) {
+                return false;
             }
         }
-        return false;
+        return true;
     }
 
     /**
-     * Splits zone of this node to assign to a new node.
+     * Splits zone of this node to assign to a new node. The zone is halved
+     * along its longest dimension, lowest dimension first on ties, and the
+     * upper half is given to the new node.
      *
      * @param zone - Zone data to be set coordinates
-     * @return int - 1 - vertical split
-     *               0 - horizontal split
+     * @return int - Dimension along which zone was split
      */
     public int splitZone(ZoneData zone) {
-        int retval = 0;
-        double newX = 0, newY = 0, newWidth = 0, newHeight = 0;
-
-        // Split zone coordinates vertically
-        if (this.width == this.height) {
-            // Set zone values for new node
-            newWidth = this.width / 2.0;
-            newHeight = this.height;
-            newX = this.x + (newWidth) ;
-            newY = this.y;
-
-            // Update current node's zone width
-            this.setWidth(newWidth);
-            retval = 1;
-        }
-        // Split zone coordinates horizontally
-        else {
-            // Set zone values for new node
-            newWidth = this.width;
-            newHeight = this.height / 2.0;
-            newX = this.x;
-            newY = this.y + (newHeight);
-
-            // Update current zone height
-            this.setHeight(newHeight);
+        int splitDim = 0;
+        for (int dim = 1; dim < start.length; dim++) {
+            if (this.size[dim] > this.size[splitDim]) {
+                splitDim = dim;
+            }
         }
 
-        zone.setZone(new Zone(newX, newY, newWidth, newHeight));
+        // Set zone values for new node
+        double[] newStart = this.start.clone();
+        double[] newSize = this.size.clone();
+        newSize[splitDim] = this.size[splitDim] / 2.0;
+        newStart[splitDim] = this.start[splitDim] + newSize[splitDim];
 
-        return retval;
+        // Update current node's zone
+        this.setSize(splitDim, newSize[splitDim]);
+
+        zone.setZone(new Zone(newStart, newSize));
+
+        return splitDim;
     }
 
     /**
@@ -202,119 +238,263 @@ public class Zone implements Serializable {
      * @return boolean
      */
     public boolean isNeighbor(Zone z) {
-        if (isTopNeighbor(z) ||
-            isBottomNeighbor(z) ||
-            isLeftNeighbor(z) ||
-            isRightNeighbor(z))
-        {
-            return true;
+        for (int dim = 0; dim < start.length; dim++) {
+            if (isNeighbor(z, dim, false) || isNeighbor(z, dim, true)) {
+                return true;
+            }
         }
         return false;
     }
 
     /**
-     * Check if given zone is a top neighbor.
+     * Check if given zone is a neighbor along given position.
      *
      * @param z - Zone
+     * @param position - Neighbor position name
      * @return boolean
      */
-    public boolean isTopNeighbor(Zone z) {
-        double x1 = this.x;
-        double y1 = this.y;
-        double w1 = this.width;
-        double h1 = this.height;
-        double x2 = z.getX();
-        double y2 = z.getY();
-        double w2 = z.getWidth();
-
-        if (y1 + h1 == y2 &&
-                ((x2 >= x1 && x2 < x1 + w1) ||
-                        (x2 < x1 && x2 + w2 > x1))) {
-            return true;
+    public boolean isNeighbor(Zone z, String position) {
+        for (int dim = 0; dim < start.length; dim++) {
+            if (position.equals(position(dim, false))) {
+                return isNeighbor(z, dim, false);
+            }
+            if (position.equals(position(dim, true))) {
+                return isNeighbor(z, dim, true);
+            }
         }
-
         return false;
     }
 
     /**
-     * Check if given zone is a bottom neighbor.
+     * Returns position at which given zone is a neighbor, null if it is
+     * not a neighbor.
+     *
+     * @param z - Zone
+     * @return String
+     */
+    public String neighborPosition(Zone z) {
+        for (int dim = 0; dim < start.length; dim++) {
+            if (isNeighbor(z, dim, false)) {
+                return position(dim, false);
+            }
+            if (isNeighbor(z, dim, true)) {
+                return position(dim, true);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check if given zone abuts this zone on the lower or upper side of
+     * given dimension and overlaps it along every other dimension.
      *
      * @param z - Zone
+     * @param dim - Dimension
+     * @param upper - true to check upper side, false for lower side
      * @return boolean
      */
-    public boolean isBottomNeighbor(Zone z) {
-        double x1 = this.x;
-        double y1 = this.y;
-        double w1 = this.width;
-        double x2 = z.getX();
-        double y2 = z.getY();
-        double w2 = z.getWidth();
-        double h2 = z.getHeight();
-
-        if (y2 + h2 == y1 &&
-                ((x2 >= x1 && x2 < x1 + w1) ||
-                        (x2 < x1 && x2 + w2 > x1))) {
-            return true;
+    public boolean isNeighbor(Zone z, int dim, boolean upper) {
+        boolean abuts = upper ?
+                this.start[dim] + this.size[dim] == z.start[dim] :
+                z.start[dim] + z.size[dim] == this.start[dim];
+        if (!abuts) {
+            return false;
         }
-        return false;
+
+        for (int other = 0; other < start.length; other++) {
+            if (other == dim)
+                continue;
+
+            if (!(z.start[other] < this.start[other] + this.size[other] &&
+                  z.start[other] + z.size[other] > this.start[other])) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
-     * Check if given zone is a left neighbor.
+     * Calculates distance of a point from closest point of zone, 0 if
+     * point lies in zone. Unlike distance to mid-point, some neighbor is
+     * always strictly closer to the point than this zone, so greedy
+     * routing cannot loop in any number of dimensions.
+     *
+     * @param p - Coordinates of point
+     * @return double - Distance from zone
+     */
+    public double zoneDistance(double[] p) {
+        double sum = 0.0;
+        for (int dim = 0; dim < start.length; dim++) {
+            double end = this.start[dim] + this.size[dim];
+            double closest = Math.max(this.start[dim], Math.min(p[dim], end));
+            sum += Math.pow(closest - p[dim], 2);
+        }
+        return Math.sqrt(sum);
+    }
+
+    /**
+     * Returns number of dimensions along which point lies on the excluded
+     * upper boundary of zone. Breaks ties between zones at distance 0 that
+     * do not contain the point.
+     *
+     * @param p - Coordinates of point
+     * @return int
+     */
+    public int boundaryCount(double[] p) {
+        int count = 0;
+        for (int dim = 0; dim < start.length; dim++) {
+            if (p[dim] == this.start[dim] + this.size[dim]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns if given zone and this zone share some volume.
      *
      * @param z - Zone
      * @return boolean
      */
-    public boolean isLeftNeighbor(Zone z) {
-        double x1 = this.x;
-        double y1 = this.y;
-        double h1 = this.height;
-        double x2 = z.getX();
-        double y2 = z.getY();
-        double w2 = z.getWidth();
-        double h2 = z.getHeight();
-
-        if (x2 + w2 == x1 &&
-                ((y2 >= y1 && y2 < y1 + h1) ||
-                        (y2 < y1 && y2 + h2 > y1))) {
-            return true;
+    public boolean intersects(Zone z) {
+        for (int dim = 0; dim < start.length; dim++) {
+            if (z.start[dim] >= this.start[dim] + this.size[dim] ||
+                this.start[dim] >= z.start[dim] + z.size[dim]) {
+                return false;
+            }
         }
-        return false;
+        return true;
+    }
+
+    /**
+     * Returns center point of zone.
+     *
+     * @return double[]
+     */
+    public double[] center() {
+        double[] p = new double[start.length];
+        for (int dim = 0; dim < start.length; dim++) {
+            p[dim] = this.start[dim] + this.size[dim] / 2;
+        }
+        return p;
     }
 
     /**
-     * Check if given zone is a right neighbor.
+     * Returns if given zone lies entirely within this zone.
      *
      * @param z - Zone
      * @return boolean
      */
-    public boolean isRightNeighbor(Zone z) {
-        double x1 = this.x;
-        double y1 = this.y;
-        double w1 = this.width;
-        double h1 = this.height;
-        double x2 = z.getX();
-        double y2 = z.getY();
-        double h2 = z.getHeight();
-
-        if (x1 + w1 == x2 &&
-                ((y2 >= y1 && y2 < y1 + h1) ||
-                        (y2 < y1 && y2 + h2 > y1))) {
-            return true;
+    public boolean contains(Zone z) {
+        for (int dim = 0; dim < start.length; dim++) {
+            if (z.start[dim] < this.start[dim] ||
+                z.start[dim] + z.size[dim] > this.start[dim] + this.size[dim]) {
+                return false;
+            }
         }
+        return true;
+    }
 
-        return false;
+    /**
+     * Returns a uniformly random point of zone.
+     *
+     * @return double[]
+     */
+    public double[] randomPoint() {
+        double[] p = new double[start.length];
+        for (int dim = 0; dim < start.length; dim++) {
+            p[dim] = this.start[dim] + Math.random() * this.size[dim];
+        }
+        return p;
     }
 
     /**
-     * Calculates distances of a point from zones mid-point.
+     * Returns volume of zone.
      *
-     * @param px - x coordinate of point
-     * @param py - y coordinate of point
-     * @return double - Distance from mid-point
+     * @return double
      */
-    public double zoneDistance(double px, double py) {
-        return Math.sqrt(Math.pow(this.midX - px, 2) + Math.pow(this.midY - py, 2));
+    public double volume() {
+        double volume = 1.0;
+        for (int dim = 0; dim < start.length; dim++) {
+            volume *= this.size[dim];
+        }
+        return volume;
+    }
+
+    /**
+     * Returns zone this zone was split from when it was created, i.e. the
+     * other half of its parent. Zones are always halved along their longest
+     * dimension, lowest dimension first, so the last split was along the
+     * highest dimension of smallest length. Returns null for the entire
+     * coordinate space.
+     *
+     * @return Zone
+     */
+    public Zone siblingZone() {
+        int splitDim = -1;
+        for (int dim = 0; dim < start.length; dim++) {
+            if (this.size[dim] < SPACE_MAX && (splitDim < 0 || this.size[dim] <= this.size[splitDim])) {
+                splitDim = dim;
+            }
+        }
+        if (splitDim < 0) {
+            return null;
+        }
+
+        // Lower half of parent when start is an even multiple of size
+        double[] siblingStart = this.start.clone();
+        boolean lower = ((long) Math.floor(this.start[splitDim] / this.size[splitDim])) % 2 == 0;
+        siblingStart[splitDim] += lower ? this.size[splitDim] : -this.size[splitDim];
+
+        return new Zone(siblingStart, this.size);
+    }
+
+    /**
+     * Returns union of this zone and given zone if together they form a
+     * box, null otherwise.
+     *
+     * @param z - Zone
+     * @return Zone
+     */
+    public Zone merge(Zone z) {
+        for (int dim = 0; dim < start.length; dim++) {
+            for (boolean upper : new boolean[] { false, true }) {
+                if (!isNeighbor(z, dim, upper))
+                    continue;
+
+                // Must match along every other dimension
+                for (int other = 0; other < start.length; other++) {
+                    if (other != dim && (z.start[other] != this.start[other] ||
+                                         z.size[other] != this.size[other])) {
+                        return null;
+                    }
+                }
+
+                double[] mergedStart = this.start.clone();
+                double[] mergedSize = this.size.clone();
+                mergedStart[dim] = Math.min(this.start[dim], z.start[dim]);
+                mergedSize[dim] = this.size[dim] + z.size[dim];
+
+                return new Zone(mergedStart, mergedSize);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof Zone))
+            return false;
+
+        Zone z = (Zone) o;
+        return Arrays.equals(this.start, z.start) && Arrays.equals(this.size, z.size);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(start) + Arrays.hashCode(size);
     }
 
     /**
@@ -323,10 +503,15 @@ public class Zone implements Serializable {
      * @return String - Zone information
      */
     public String toString() {
-        double xEnd = this.x + this.width;
-        double yEnd = this.y + this.height;
+        StringBuilder str = new StringBuilder();
+        for (int dim = 0; dim < start.length; dim++) {
+            String axis = (dim < AXIS_NAMES.length) ? AXIS_NAMES[dim] : "D" + dim;
+            if (dim > 0)
+                str.append(" ");
+            str.append(String.format("%s(%.2f - %.2f)",
+                    axis, this.start[dim], this.start[dim] + this.size[dim]));
+        }
 
-        return String.format("X(%.2f - %.2f) ", this.x, xEnd) +
-               String.format("Y(%.2f - %.2f)", this.y, yEnd);
+        return str.toString();
     }
 }